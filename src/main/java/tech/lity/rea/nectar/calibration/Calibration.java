@@ -22,6 +22,7 @@ package tech.lity.rea.nectar.calibration;
 import java.io.FileNotFoundException;
 import processing.core.PApplet;
 import processing.data.XML;
+import redis.clients.jedis.Jedis;
 import tech.lity.rea.nectar.camera.RedisClient;
 
 /**
@@ -59,14 +60,18 @@ public abstract class Calibration {
         assert (isValid());
         XML root = new XML(Calibration.CALIBRATION_XML_NAME);
         this.addTo(root);
-        client.createConnection().set(key, root.toString());
+        try (Jedis connection = client.createConnection()) {
+            connection.set(key, root.toString());
+        }
     }
 
     public void saveToYAML(RedisClient client, String key) {
         assert (isValid());
         StringBuilder builder = new StringBuilder("%YAML:1.0\n");
         this.addTo(builder);
-        client.createConnection().set(key, builder.toString());
+        try (Jedis connection = client.createConnection()) {
+            connection.set(key, builder.toString());
+        }
     }
 
     public void saveTo(PApplet parent, String fileName) {
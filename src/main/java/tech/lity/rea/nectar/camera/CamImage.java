@@ -35,6 +35,11 @@ public abstract class CamImage extends PImage {
     protected Object bufferSink = null;
     protected ByteBuffer natBuffer = null;
     protected Camera.PixelFormat incomingFormat;
+    // Frame version of the last update, see Camera.getFrameVersion().
+    protected long frameVersion = -1;
+
+    // Durations of the conversions and uploads of the camera frames.
+    private static final LatencyHistogram updateTime = Metrics.getDefault().histogram("image.camimage");
 
     protected CamImage(PApplet parent, int width, int height, int format, PixelFormat incomingFormat) {
         super(width, height, format);
@@ -51,6 +56,29 @@ public abstract class CamImage extends PImage {
 
     public abstract void update(IplImage iplImage);
 
+    /**
+     * Update only when the frame is not the one already converted and
+     * uploaded.
+     *
+     * @param iplImage
+     * @param version frame version of the image.
+     * @return true if the image was updated.
+     */
+    public boolean update(IplImage iplImage, long version) {
+        if (version == frameVersion) {
+            return false;
+        }
+        long start = System.nanoTime();
+        update(iplImage);
+        updateTime.record(System.nanoTime() - start);
+        frameVersion = version;
+        return true;
+    }
+
+    public long getFrameVersion() {
+        return frameVersion;
+    }
+
     public synchronized void disposeBuffer(Object buf) {
 
     }
@@ -35,6 +35,7 @@ import processing.opengl.Texture;
 public class CamImageGray extends CamImage {
 
     protected ByteBuffer argbBuffer;
+    protected DepthColorMap depthColorMap = null;
 
     public CamImageGray(PApplet parent, Image img) {
         super(parent, img);
@@ -59,6 +60,19 @@ public class CamImageGray extends CamImage {
         argbBuffer = ByteBuffer.allocateDirect(this.pixels.length * 4);
     }
 
+    /**
+     * Colors of the 16 bits depth images.
+     *
+     * @param colorMap map to use, null for DepthColorMap.DEFAULT.
+     */
+    public void setDepthColorMap(DepthColorMap colorMap) {
+        this.depthColorMap = colorMap;
+    }
+
+    public DepthColorMap getDepthColorMap() {
+        return depthColorMap == null ? DepthColorMap.DEFAULT : depthColorMap;
+    }
+
     @Override
     public void update(opencv_core.IplImage iplImage) {
 
@@ -74,14 +88,10 @@ public class CamImageGray extends CamImage {
         if (incomingFormat == PixelFormat.FLOAT_DEPTH_KINECT2) {
             ImageUtils.byteBufferDepthK2toARGB(imageBuffer, argbBuffer);
         }
-        if (incomingFormat == PixelFormat.DEPTH_KINECT_MM) {
-            ImageUtils.byteBufferDepthK1MMtoARGB(imageBuffer, argbBuffer);
-        }
-        if (incomingFormat == PixelFormat.REALSENSE_Z16) {
-            ImageUtils.byteBufferZ16toARGB(imageBuffer, argbBuffer);
-        }
-        if (incomingFormat == PixelFormat.OPENNI_2_DEPTH) {
-            ImageUtils.byteBufferShorttoARGB(imageBuffer, argbBuffer);
+        if (incomingFormat == PixelFormat.DEPTH_KINECT_MM
+                || incomingFormat == PixelFormat.REALSENSE_Z16
+                || incomingFormat == PixelFormat.OPENNI_2_DEPTH) {
+            ImageUtils.byteBufferDepthToARGB(imageBuffer, argbBuffer, getDepthColorMap());
         }
 
 //         Utils.byteBufferBRGtoARGB(bgrBuffer, argbBuffer);
@@ -27,8 +27,15 @@ import org.bytedeco.javacpp.opencv_core.IplImage;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import processing.core.PApplet;
 import processing.core.PConstants;
 import processing.core.PImage;
@@ -37,14 +44,27 @@ import processing.core.PVector;
 import processing.data.JSONObject;
 import tech.lity.rea.javacvprocessing.ProjectiveDeviceP;
 import tech.lity.rea.nectar.markers.DetectedMarker;
+import tech.lity.rea.nectar.tracking.MarkerBoard;
 import tech.lity.rea.nectar.utils.WithSize;
 
-public abstract class Camera extends Observable implements PConstants, WithSize {
+public abstract class Camera extends Observable implements PConstants, WithSize, Metrics.Source {
 
     public static Camera INVALID_CAMERA = new CameraNectar("-1");
 
     // Images
-    protected IplImage currentImage, copyUndist;
+    protected IplImage copyUndist;
+    // Undistortion: map of the current calibration, and two output images.
+    private UndistortMap undistortMap = null;
+    private final IplImage[] undistortBuffers = new IplImage[2];
+    private int undistortIndex = 0;
+    // Frames published by the grabber, latched once per frame by grab().
+    private TripleBuffer<IplImage> imageBuffers = null;
+    // Buffers replaced by setImageBuffers(), given back to the ImagePool
+    // when the readers cannot use them anymore.
+    private final ArrayList<TripleBuffer<IplImage>> retiredBuffers = new ArrayList<>();
+    private int framesSinceRetired = 0;
+    // Current image with its version and times, replaced as a whole.
+    private volatile CurrentFrame current = CurrentFrame.NONE;
     protected CamImage camImage = null;
     protected DetectedMarker[] lastMarkers = null;
 
@@ -83,6 +103,32 @@ public abstract class Camera extends Observable implements PConstants, WithSize
                 || pixelFormat == PixelFormat.RGBA;
     }
 
+    /**
+     * Size of one pixel in memory.
+     *
+     * @param format
+     * @return number of bytes per pixel.
+     */
+    public static int bytesPerPixel(PixelFormat format) {
+        switch (format) {
+            case RGB:
+            case BGR:
+                return 3;
+            case ARGB:
+            case RGBA:
+            case GRAY_32:
+            case FLOAT_DEPTH_KINECT2:
+                return 4;
+            case DEPTH_KINECT_MM:
+            case REALSENSE_Z16:
+            case OPENNI_2_DEPTH:
+                return 2;
+            case GRAY:
+            default:
+                return 1;
+        }
+    }
+
     protected PixelFormat format;
 
     // Parameters
@@ -251,15 +297,18 @@ public abstract class Camera extends Observable implements PConstants, WithSize
         this.width = pdp.getWidth();
         this.height = pdp.getHeight();
         this.undistort = pdp.handleDistorsions();
+        // Built again with the new intrinsics.
+        this.undistortMap = null;
     }
 
     public PImage getPImageCopy() {
         PImage out = parent.createImage(this.width, this.height, RGB);
-        if (currentImage == null) {
+        IplImage img = getIplImage();
+        if (img == null) {
             System.err.println("Error in PImageCopy(): no current image. ");
             return out;
         }
-        ImageUtils.IplImageToPImage(currentImage, false, out);
+        ImageUtils.IplImageToPImage(img, false, out);
         return out;
     }
 
@@ -271,12 +320,12 @@ public abstract class Camera extends Observable implements PConstants, WithSize
      */
     public PImage getPImageCopy(PApplet context) {
         PImage out = context.createImage(this.width, this.height, RGB);
-        ImageUtils.IplImageToPImage(currentImage, this.format == PixelFormat.RGB, out);
+        ImageUtils.IplImageToPImage(getIplImage(), this.format == PixelFormat.RGB, out);
         return out;
     }
 
     public PImage getPImageCopyTo(PImage out) {
-        ImageUtils.IplImageToPImage(currentImage, this.format, out);
+        ImageUtils.IplImageToPImage(getIplImage(), this.format, out);
         return out;
     }
 
@@ -299,6 +348,9 @@ public abstract class Camera extends Observable implements PConstants, WithSize
         try {
             getSheetSemaphore().acquire();
             this.sheets.add(sheet);
+            synchronized (sheets) {
+                trackedSnapshot = sheets.toArray(new TrackedObject[sheets.size()]);
+            }
             getSheetSemaphore().release();
         } catch (InterruptedException ex) {
             System.out.println("Interrupted !");
@@ -334,8 +386,21 @@ public abstract class Camera extends Observable implements PConstants, WithSize
         return this.sheets.contains(board);
     }
 
+    /**
+     * @return the tracked sheets, read only: add them with track().
+     */
     public List<TrackedObject> getTrackedSheets() {
-        return this.sheets;
+        return Collections.unmodifiableList(this.sheets);
+    }
+
+    // Copy of the sheets, replaced when one is added: read without lock.
+    private volatile TrackedObject[] trackedSnapshot = new TrackedObject[0];
+
+    /**
+     * @return the tracked sheets, do not modify the array.
+     */
+    public TrackedObject[] getTrackedSnapshot() {
+        return trackedSnapshot;
     }
 
     /**
@@ -465,7 +530,7 @@ public abstract class Camera extends Observable implements PConstants, WithSize
     public void setThread() {
         if (thread == null) {
             thread = new CameraGrabberThread(this);
-//            thread.setCompute(this.trackSheets);
+            thread.setCompute(this.trackSheets);
             thread.start();
         } else {
             System.err.println("Camera: Error Thread already launched");
@@ -504,6 +569,248 @@ public abstract class Camera extends Observable implements PConstants, WithSize
         return timeStamp;
     }
 
+    // Capture and arrival times (FrameClock) of the last frame given by the
+    // grabber, and of the three image buffers.
+    private volatile long lastCaptureNanos = 0;
+    private volatile long lastArrivalNanos = 0;
+    private final long[][] bufferTimes = new long[3][2];
+    // Set by the grabber for its next frame, 0 when unknown.
+    private long nextCaptureNanos = 0;
+    private long nextArrivalNanos = 0;
+
+    private final LatencyHistogram transportLatency = new LatencyHistogram("transport");
+    private final LatencyHistogram ingestLatency = new LatencyHistogram("ingest");
+    // Frame rate measured on the frames given by the grabber.
+    private long lastFrameNanos = 0;
+    private volatile float measuredFrameRate = 0;
+
+    /**
+     * Producer side: times of the next frame given to updateCurrentImage()
+     * or publishCurrentImage(). Without them, the frame is captured when it
+     * is given.
+     *
+     * @param captureNanos capture time, see FrameClock. 0 if unknown.
+     * @param arrivalNanos time the frame reached this process, 0 if unknown.
+     */
+    protected void setNextFrameTime(long captureNanos, long arrivalNanos) {
+        this.nextCaptureNanos = captureNanos;
+        this.nextArrivalNanos = arrivalNanos;
+    }
+
+    /**
+     * Producer side: time stamp of a new frame, the latencies are recorded.
+     *
+     * @param times receives the capture and arrival times.
+     * @return times
+     */
+    private long[] stampFrame(long[] times) {
+        long now = FrameClock.nanoTime();
+        long arrival = nextArrivalNanos > 0 ? nextArrivalNanos : now;
+        long capture = nextCaptureNanos > 0 ? nextCaptureNanos : arrival;
+        if (nextCaptureNanos > 0) {
+            transportLatency.record(arrival - capture);
+        }
+        if (nextArrivalNanos > 0) {
+            ingestLatency.record(now - arrival);
+        }
+        nextCaptureNanos = 0;
+        nextArrivalNanos = 0;
+        if (lastFrameNanos > 0 && now > lastFrameNanos) {
+            float rate = 1e9f / (now - lastFrameNanos);
+            // Exponential average over about ten frames.
+            measuredFrameRate = measuredFrameRate == 0 ? rate : measuredFrameRate * 0.9f + rate * 0.1f;
+        }
+        lastFrameNanos = now;
+        this.timeStamp = parent != null ? parent.millis() : FrameClock.millis();
+        lastCaptureNanos = capture;
+        lastArrivalNanos = arrival;
+        times[0] = capture;
+        times[1] = arrival;
+        return times;
+    }
+
+    /**
+     * @return capture time of the current image, in FrameClock nanoseconds.
+     * When the grabber does not know it, it is the arrival time.
+     */
+    public long getCaptureTimeNanos() {
+        return checkActingCamera(this).readCurrent().captureNanos;
+    }
+
+    /**
+     * @return time the current image reached this process, in FrameClock
+     * nanoseconds.
+     */
+    public long getArrivalTimeNanos() {
+        return checkActingCamera(this).readCurrent().arrivalNanos;
+    }
+
+    /**
+     * @return time from the capture to the arrival of the frames, known only
+     * for the grabbers that get the capture time (CameraNectar).
+     */
+    public LatencyHistogram getTransportLatency() {
+        return transportLatency;
+    }
+
+    /**
+     * @return frames per second given by the grabber, 0 before two frames.
+     */
+    public float getMeasuredFrameRate() {
+        return measuredFrameRate;
+    }
+
+    /**
+     * Frames, frame rate, latencies, frames dropped by the listeners, and
+     * the metrics of the grabber thread and of the tracked boards.
+     *
+     * @param prefix
+     * @param out
+     */
+    @Override
+    public void reportMetrics(String prefix, Map<String, Number> out) {
+        out.put(prefix + ".frames", getArrivedFrames());
+        out.put(prefix + ".fps", measuredFrameRate);
+        Metrics.putHistogram(out, prefix + ".latency.transport", transportLatency);
+        Metrics.putHistogram(out, prefix + ".latency.ingest", ingestLatency);
+        long dropped = 0;
+        for (ListenerEntry entry : frameListeners) {
+            dropped += entry.dropped.get();
+        }
+        out.put(prefix + ".listeners.dropped", dropped);
+        CameraGrabberThread grabber = thread;
+        if (grabber != null) {
+            Metrics.putHistogram(out, prefix + ".latency.tracking", grabber.getTrackingTime());
+        }
+        for (TrackedObject object : trackedSnapshot) {
+            if (object instanceof MarkerBoard) {
+                String name = ((MarkerBoard) object).getName();
+                name = name == null ? Integer.toHexString(object.hashCode())
+                        : name.substring(name.lastIndexOf('/') + 1);
+                ((MarkerBoard) object).reportMetrics(prefix + ".board." + name, out);
+            }
+        }
+    }
+
+    /**
+     * Empty the latency histograms of the camera, of the grabber thread and
+     * of the tracked boards.
+     */
+    @Override
+    public void resetMetrics() {
+        transportLatency.reset();
+        ingestLatency.reset();
+        CameraGrabberThread grabber = thread;
+        if (grabber != null) {
+            grabber.getTrackingTime().reset();
+        }
+        for (TrackedObject object : trackedSnapshot) {
+            if (object instanceof MarkerBoard) {
+                ((MarkerBoard) object).resetMetrics();
+            }
+        }
+    }
+
+    /**
+     * @return time from the arrival of the frames to their availability
+     * (decoding and copy), known only for the grabbers that set it.
+     */
+    public LatencyHistogram getIngestLatency() {
+        return ingestLatency;
+    }
+
+    /**
+     * Version of the current image, it changes only when a new frame is
+     * available.
+     *
+     * @return
+     */
+    public long getFrameVersion() {
+        return checkActingCamera(this).readCurrent().version;
+    }
+
+    /**
+     * @return the current image with its version and times, of the acting
+     * camera.
+     */
+    CurrentFrame getCurrentFrame() {
+        return checkActingCamera(this).readCurrent();
+    }
+
+    /**
+     * @return version of the frame latched last, without latching.
+     */
+    long getLatchedVersion() {
+        return current.version;
+    }
+
+    /**
+     * @return true when a CameraGrabberThread calls grab() for this camera.
+     */
+    protected boolean hasGrabberThread() {
+        return thread != null;
+    }
+
+    /**
+     * Latch called by the readers when there is no grabber thread.
+     */
+    protected void latchOnRead() {
+        latchCurrentImage();
+    }
+
+    // Without a grabber thread nothing may call grab(): the readers latch
+    // the frames themselves.
+    private CurrentFrame readCurrent() {
+        if (!hasGrabberThread()) {
+            latchOnRead();
+        }
+        return current;
+    }
+
+    private final FrameCache frameCache = new FrameCache();
+
+    /**
+     * Gray image of the current frame, shared by all the trackers. See
+     * FrameCache.
+     *
+     * @return the gray image, null if the pixel format has no gray version.
+     */
+    public IplImage getGrayImage() {
+        return getGrayImage(FrameCache.GRAY);
+    }
+
+    /**
+     * Level of the gray pyramid of the current frame, computed once per
+     * frame. Do not modify it, it stays valid during the next frame. See
+     * FrameCache.getRetained() to keep it longer.
+     *
+     * @param level FrameCache.GRAY, HALF or QUARTER.
+     * @return the image, null if the pixel format has no gray version.
+     */
+    public IplImage getGrayImage(int level) {
+        Camera acting = checkActingCamera(this);
+        CurrentFrame frame = acting.readCurrent();
+        return acting.frameCache.get(frame.image, frame.version, acting.getPixelFormat(), level);
+    }
+
+    /**
+     * Like getGrayImage(level), with a reference for the caller: the image
+     * stays valid until it is released in ImagePool.getDefault().
+     *
+     * @param level FrameCache.GRAY, HALF or QUARTER.
+     * @return the image to release, null if the pixel format has no gray
+     * version.
+     */
+    public IplImage getRetainedGrayImage(int level) {
+        Camera acting = checkActingCamera(this);
+        CurrentFrame frame = acting.readCurrent();
+        return acting.frameCache.getRetained(frame.image, frame.version, acting.getPixelFormat(), level);
+    }
+
+    public FrameCache getFrameCache() {
+        return checkActingCamera(this).frameCache;
+    }
+
     /**
      * Update the current Image, from the specific grabber, lens distorsions are
      * handled here.
@@ -511,11 +818,295 @@ public abstract class Camera extends Observable implements PConstants, WithSize
      * @param img
      */
     public void updateCurrentImage(IplImage img) {
+        long[] times = stampFrame(new long[2]);
+        setCurrentImage(img, times[0], times[1]);
+        signalFrameArrival();
+        dispatchCurrentFrame(this, current);
+    }
 
-        if (parent != null) {
-            this.timeStamp = parent.millis();
+    // Frames arrived, counted by the grabbers. Waited on in awaitFrame().
+    private final Object frameArrival = new Object();
+    private long arrivedFrames = 0;
+
+    /**
+     * Producer side: a new frame is available, wake up the threads waiting
+     * for it.
+     */
+    protected void signalFrameArrival() {
+        signalFrameArrival(this);
+    }
+
+    /**
+     * @param source camera of the frame, this or one of its sub cameras.
+     */
+    protected void signalFrameArrival(Camera source) {
+        synchronized (frameArrival) {
+            arrivedFrames++;
+            frameArrival.notifyAll();
         }
+    }
 
+    /**
+     * Give the frame that just became current to the listeners.
+     *
+     * @param source camera of the frame, this or one of its sub cameras.
+     * @param frame the current frame of source.
+     */
+    void dispatchCurrentFrame(Camera source, CurrentFrame frame) {
+        if (!frameListeners.isEmpty() && frame.image != null) {
+            dispatchFrame(new CameraFrame(source, source.getArrivedFrames(), frame));
+        }
+    }
+
+    private final CopyOnWriteArrayList<ListenerEntry> frameListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * A listener and its executor. With an executor, at most one frame waits
+     * for the listener: the older ones are dropped.
+     */
+    private static final class ListenerEntry implements Runnable {
+
+        final FrameListener listener;
+        final Executor executor;
+        final AtomicReference<CameraFrame> pending = new AtomicReference<>();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        ListenerEntry(FrameListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void frameArrived(CameraFrame frame) {
+            if (executor == null) {
+                call(frame);
+                return;
+            }
+            if (pending.getAndSet(frame) != null) {
+                // The listener has not taken the previous one yet.
+                dropped.incrementAndGet();
+            }
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                if (pending.getAndSet(null) != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        // One task at a time: the listener is never called concurrently.
+        @Override
+        public void run() {
+            while (true) {
+                CameraFrame frame = pending.getAndSet(null);
+                if (frame != null) {
+                    call(frame);
+                    continue;
+                }
+                scheduled.set(false);
+                // A frame set just before scheduled was released.
+                if (pending.get() == null || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private void call(CameraFrame frame) {
+            try {
+                listener.frameArrived(frame);
+            } catch (Exception e) {
+                System.err.println("Camera: error in the frame listener " + listener + ": " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void dispatchFrame(CameraFrame frame) {
+        for (ListenerEntry entry : frameListeners) {
+            entry.frameArrived(frame);
+        }
+    }
+
+    /**
+     * Call the listener for each frame, when it becomes the current image: in
+     * the thread calling grab(), the CameraGrabberThread after setThread().
+     * Without grabber thread, in the thread reading the images. It must
+     * return quickly: the next frame is not read before.
+     *
+     * @param listener
+     */
+    public void addFrameListener(FrameListener listener) {
+        addFrameListener(listener, null);
+    }
+
+    /**
+     * Call the listener for each frame, on the executor. When it is slower
+     * than the camera, it gets the latest frame and the others are dropped.
+     *
+     * @param listener
+     * @param executor null to call it in the thread calling grab().
+     */
+    public void addFrameListener(FrameListener listener, Executor executor) {
+        frameListeners.add(new ListenerEntry(listener, executor));
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        frameListeners.removeIf(entry -> entry.listener == listener);
+    }
+
+    /**
+     * @param listener
+     * @return frames not given to the listener because it was busy, -1 if it
+     * is not registered.
+     */
+    public long getDroppedFrames(FrameListener listener) {
+        for (ListenerEntry entry : frameListeners) {
+            if (entry.listener == listener) {
+                return entry.dropped.get();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of frames arrived since the start.
+     */
+    public long getArrivedFrames() {
+        synchronized (frameArrival) {
+            return arrivedFrames;
+        }
+    }
+
+    /**
+     * Wait for a frame arrived after the given count.
+     *
+     * @param lastSeen value of getArrivedFrames() already handled.
+     * @param timeoutMillis
+     * @return the number of frames arrived, lastSeen on timeout or when the
+     * camera is closing.
+     * @throws InterruptedException
+     */
+    public long awaitFrame(long lastSeen, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized (frameArrival) {
+            while (arrivedFrames <= lastSeen && !isClosing) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                frameArrival.wait(remaining);
+            }
+            return arrivedFrames;
+        }
+    }
+
+    /**
+     * Wait for the next frame.
+     *
+     * @param timeoutMillis
+     * @return true if a frame arrived, false on timeout or when the camera is
+     * closing.
+     * @throws InterruptedException
+     */
+    public boolean awaitNextFrame(long timeoutMillis) throws InterruptedException {
+        long count = getArrivedFrames();
+        return awaitFrame(count, timeoutMillis) > count;
+    }
+
+    /**
+     * Frames are given through a triple buffer: the grabber writes in
+     * getWriteBuffer() and calls publishCurrentImage(), it never waits for the
+     * consumers. The latest frame becomes the current image in grab().
+     *
+     * The images come from ImagePool.getDefault(). Replaced buffers are given
+     * back when two frames of the new ones have been latched: the current
+     * image may be one of them until then, and readers may still use it
+     * during the next frame.
+     *
+     * @param buffers buffers of the grabber, null to stop using them.
+     */
+    protected synchronized void setImageBuffers(TripleBuffer<IplImage> buffers) {
+        if (imageBuffers != null && imageBuffers != buffers) {
+            retiredBuffers.add(imageBuffers);
+            framesSinceRetired = 0;
+        }
+        this.imageBuffers = buffers;
+    }
+
+    /**
+     * Give all the image buffers back to the ImagePool now, when the camera
+     * is closed.
+     */
+    protected synchronized void releaseImageBuffers() {
+        setImageBuffers(null);
+        releaseRetiredBuffers();
+    }
+
+    private void releaseRetiredBuffers() {
+        for (TripleBuffer<IplImage> buffers : retiredBuffers) {
+            for (int i = 0; i < 3; i++) {
+                ImagePool.getDefault().release(buffers.getBuffer(i));
+            }
+        }
+        retiredBuffers.clear();
+    }
+
+    /**
+     * Producer side: the write buffer of the image buffers is complete.
+     */
+    protected void publishCurrentImage() {
+        // The times travel with the buffer, they are read when it is latched.
+        stampFrame(bufferTimes[bufferIndex(imageBuffers.getWriteBuffer())]);
+        imageBuffers.publish();
+        signalFrameArrival();
+    }
+
+    /**
+     * Consumer side: take the latest frame published, if any. It is the only
+     * reader of the image buffers, called once per frame by grab(): in the
+     * grabber thread when there is one. The other threads read the frame
+     * latched here, they never latch nor undistort. Without grabber thread
+     * (setThread() not called) the readers latch, in their own thread. The
+     * frame listeners are called here, out of the lock.
+     */
+    protected void latchCurrentImage() {
+        CurrentFrame latched = latch();
+        if (latched != null) {
+            dispatchCurrentFrame(this, latched);
+        }
+    }
+
+    private synchronized CurrentFrame latch() {
+        if (imageBuffers == null || !imageBuffers.hasNewFrame()) {
+            return null;
+        }
+        CurrentFrame previous = current;
+        IplImage img = imageBuffers.getReadBuffer();
+        if (img != null) {
+            long[] times = bufferTimes[bufferIndex(img)];
+            setCurrentImage(img, times[0], times[1]);
+        }
+        if (!retiredBuffers.isEmpty() && ++framesSinceRetired >= 2) {
+            releaseRetiredBuffers();
+        }
+        return current != previous ? current : null;
+    }
+
+    private int bufferIndex(IplImage img) {
+        for (int i = 0; i < 2; i++) {
+            if (imageBuffers.getBuffer(i) == img) {
+                return i;
+            }
+        }
+        return 2;
+    }
+
+    private void setCurrentImage(IplImage img, long captureNanos, long arrivalNanos) {
         if (undistort) {
             if (pdp == null || !pdp.handleDistorsions()) {
                 System.err.println("I cannot distort the image for processing. The "
@@ -523,18 +1114,52 @@ public abstract class Camera extends Observable implements PConstants, WithSize
                 return;
             }
 
-            if (copyUndist == null) {
-                copyUndist = img.clone();
-            }
             // Workaround for crash when the java program is closing
             // to avoid native code to continue to run...
             if (isClosing()) {
                 return;
             }
-            pdp.getDevice().undistort(img, copyUndist);
-            currentImage = copyUndist;
-        } else {
-            currentImage = img;
+            if (undistortMap == null || !undistortMap.matches(img)) {
+                undistortMap = UndistortMap.create(pdp.getDevice(), img.width(), img.height());
+            }
+            // Written in the buffer not read by the consumers.
+            undistortIndex = 1 - undistortIndex;
+            IplImage out = undistortBuffers[undistortIndex];
+            if (out == null || out.width() != img.width() || out.height() != img.height()
+                    || out.nChannels() != img.nChannels() || out.depth() != img.depth()) {
+                out = img.clone();
+                undistortBuffers[undistortIndex] = out;
+            }
+            if (undistortMap != null) {
+                undistortMap.remap(img, out, isPixelFormatColor() || format == PixelFormat.GRAY);
+            } else {
+                pdp.getDevice().undistort(img, out);
+            }
+            copyUndist = out;
+            img = copyUndist;
+        }
+        current = new CurrentFrame(img, current.version + 1, captureNanos, arrivalNanos);
+    }
+
+    /**
+     * The current image with its version and times. It is replaced as a whole:
+     * the readers never get the image of a frame with the version or the times
+     * of another one.
+     */
+    static final class CurrentFrame {
+
+        static final CurrentFrame NONE = new CurrentFrame(null, 0, 0, 0);
+
+        final IplImage image;
+        final long version;
+        final long captureNanos;
+        final long arrivalNanos;
+
+        CurrentFrame(IplImage image, long version, long captureNanos, long arrivalNanos) {
+            this.image = image;
+            this.version = version;
+            this.captureNanos = captureNanos;
+            this.arrivalNanos = arrivalNanos;
         }
     }
 
@@ -559,8 +1184,12 @@ public abstract class Camera extends Observable implements PConstants, WithSize
 // Public API 
     public abstract void grab();
 
+    /**
+     * @return the current image, latched by the last grab(), or by this call
+     * without grabber thread. Readers share it: do not modify it.
+     */
     public IplImage getIplImage() {
-        return currentImage;
+        return readCurrent().image;
     }
 
     public ProjectiveDeviceP getProjectiveDevice() {
@@ -603,6 +1232,10 @@ public abstract class Camera extends Observable implements PConstants, WithSize
 
     protected void setClosing() {
         this.isClosing = true;
+        frameCache.clear();
+        synchronized (frameArrival) {
+            frameArrival.notifyAll();
+        }
         this.stopThread();
     }
 
@@ -618,6 +1251,24 @@ public abstract class Camera extends Observable implements PConstants, WithSize
         this.format = format;
     }
 
+    /**
+     * Follow a size or format change of the incoming frames. The CamImage is
+     * created again on the next getPImage().
+     *
+     * @param width
+     * @param height
+     * @param format
+     */
+    protected void setFrameFormat(int width, int height, PixelFormat format) {
+        if (width == this.width && height == this.height && format == this.format) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.camImage = null;
+    }
+
     public boolean hasExtrinsics() {
         return this.hasExtrinsics;
     }
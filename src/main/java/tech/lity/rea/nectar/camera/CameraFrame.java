@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import tech.lity.rea.nectar.camera.Camera.PixelFormat;
+
+/**
+ * Frame given to the FrameListeners, when it becomes the current image of the
+ * camera. One instance per frame, shared by all the listeners: the image and
+ * its version are the ones of this frame, not of the frames after.
+ *
+ * @author Jeremy Laviole
+ */
+public class CameraFrame {
+
+    private final Camera camera;
+    private final long sequence;
+    private final long captureNanos;
+    private final long arrivalNanos;
+    private final PixelFormat format;
+    private final int width, height;
+    private final IplImage image;
+    private final long version;
+
+    CameraFrame(Camera camera, long sequence, Camera.CurrentFrame frame) {
+        this.camera = camera;
+        this.sequence = sequence;
+        this.captureNanos = frame.captureNanos;
+        this.arrivalNanos = frame.arrivalNanos;
+        this.image = frame.image;
+        this.version = frame.version;
+        this.format = camera.getPixelFormat();
+        this.width = camera.width();
+        this.height = camera.height();
+    }
+
+    /**
+     * @return the camera of the frame: the sub camera (color, depth...) for
+     * the frames of a CameraRGBIRDepth.
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * @return number of the frame, see Camera.getArrivedFrames().
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return arrival time, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return FrameClock.toMillis(arrivalNanos);
+    }
+
+    /**
+     * @return capture time, in FrameClock nanoseconds. The arrival time when
+     * the grabber does not know it.
+     */
+    public long getCaptureTimeNanos() {
+        return captureNanos;
+    }
+
+    /**
+     * @return time the frame reached this process, in FrameClock nanoseconds.
+     */
+    public long getArrivalTimeNanos() {
+        return arrivalNanos;
+    }
+
+    public PixelFormat getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The image of this frame. It can be reused for a later frame once a
+     * newer one is latched: a listener called on an executor, late, checks
+     * that getFrameVersion() is still the one of the camera if it matters.
+     *
+     * @return the image of the frame, do not modify it.
+     */
+    public IplImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return the version of the image, see Camera.getFrameVersion().
+     */
+    public long getFrameVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if no frame arrived after this one.
+     */
+    public boolean isLatest() {
+        return camera.getArrivedFrames() == sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "CameraFrame " + sequence + " " + width + "x" + height + " " + format;
+    }
+}
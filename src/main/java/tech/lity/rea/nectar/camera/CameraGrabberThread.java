@@ -19,7 +19,15 @@
  */
 package tech.lity.rea.nectar.camera;
 
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import tech.lity.rea.nectar.tracking.MarkerBoard;
+
 /**
+ * Grabs the frames of a camera. With compute on, the tracked MarkerBoards
+ * are updated after each new frame, in parallel.
  *
  * @author jeremylaviole
  */
@@ -27,30 +35,170 @@ public class CameraGrabberThread extends Thread {
 
     protected final Camera camera;
     Camera cameraForMarkerboard;
-    private boolean compute;
+    private volatile boolean compute;
 
     public boolean stop;
 
+    // Longest wait for a frame when grab() returned without one.
+    private static final long IDLE_WAIT_MILLIS = 10;
+
+    private ForkJoinPool trackingPool = ForkJoinPool.commonPool();
+    private volatile long trackingTimeNanos = 0;
+    private final LatencyHistogram trackingTime = new LatencyHistogram("tracking");
+    // Boards of the tracked snapshots, sorted again when a snapshot changes.
+    private TrackedObject[] sortedSnapshot = null, sortedActingSnapshot = null;
+    private final ArrayList<MarkerBoard> boards = new ArrayList<>();
+    private final ArrayList<MarkerBoard> finders = new ArrayList<>();
+
     public CameraGrabberThread(Camera camera) {
         this.camera = camera;
         stop = false;
         cameraForMarkerboard = camera;
     }
 
-    // Grabber does not compute anything.
-    public void setCompute(boolean c){
-        
+    /**
+     * @param c update the tracked boards after each frame.
+     */
+    public void setCompute(boolean c) {
+        this.compute = c;
+    }
+
+    public boolean isCompute() {
+        return compute;
+    }
+
+    /**
+     * @param pool pool of the board updates. Default: the common pool.
+     */
+    public void setTrackingPool(ForkJoinPool pool) {
+        this.trackingPool = pool;
+    }
+
+    /**
+     * @return duration of the last tracking of all the boards, in
+     * nanoseconds. See MarkerBoard.getTrackingTimeNanos() for each board.
+     */
+    public long getTrackingTimeNanos() {
+        return trackingTimeNanos;
+    }
+
+    /**
+     * @return durations of the tracking of all the boards, for each frame.
+     */
+    public LatencyHistogram getTrackingTime() {
+        return trackingTime;
     }
-    
+
     @Override
     public void run() {
         while (!stop) {
             checkSubCamera();
+            long frames = camera.getArrivedFrames();
             camera.grab();
+            if (camera.getArrivedFrames() == frames) {
+                // Nothing new: wait for a frame instead of calling grab() again at once.
+                try {
+                    camera.awaitFrame(frames, IDLE_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    System.err.println("CameraGrabberThread interrupted.");
+                    return;
+                }
+                continue;
+            }
             // If there is no camera for tracking...
             if (cameraForMarkerboard == null || !compute) {
                 continue;
             }
+            trackBoards();
+        }
+    }
+
+    /**
+     * Update all the boards with the current frame. The boards using the
+     * JavaCV finder change the ROI of the image: they are updated one after
+     * the other, in one task.
+     */
+    private void trackBoards() {
+        Camera acting = Camera.checkActingCamera(cameraForMarkerboard);
+        TrackedObject[] snapshot = cameraForMarkerboard.getTrackedSnapshot();
+        TrackedObject[] actingSnapshot = acting != cameraForMarkerboard ? acting.getTrackedSnapshot() : null;
+        if (snapshot != sortedSnapshot || actingSnapshot != sortedActingSnapshot) {
+            boards.clear();
+            finders.clear();
+            collectBoards(snapshot, boards, finders);
+            if (actingSnapshot != null) {
+                collectBoards(actingSnapshot, boards, finders);
+            }
+            sortedSnapshot = snapshot;
+            sortedActingSnapshot = actingSnapshot;
+        }
+        if (boards.isEmpty() && finders.isEmpty()) {
+            return;
+        }
+
+        // The frame, its version and its capture time are read together.
+        Camera.CurrentFrame frame = acting.getCurrentFrame();
+        IplImage img = frame.image;
+        long version = frame.version;
+        long captureTime = frame.captureNanos;
+        if (img == null) {
+            return;
+        }
+        IplImage gray = null;
+        for (MarkerBoard board : boards) {
+            if (board.useGrayImages()) {
+                // Retained: it stays valid whatever the other readers of the cache do.
+                gray = acting.getFrameCache().getRetained(img, version, acting.getPixelFormat(), FrameCache.GRAY);
+                break;
+            }
+        }
+        IplImage grayImage = gray == null ? img : gray;
+        Object markers = acting.getDetectedMarkers();
+
+        long start = System.nanoTime();
+        int tasks = boards.size() + (finders.isEmpty() ? 0 : 1);
+        Runnable stage = () -> IntStream.range(0, tasks).parallel().forEach(i -> {
+            if (i < boards.size()) {
+                MarkerBoard board = boards.get(i);
+                update(board, acting, board.useGrayImages() ? grayImage : img, markers, captureTime);
+            } else {
+                for (MarkerBoard board : finders) {
+                    update(board, acting, img, markers, captureTime);
+                }
+            }
+        });
+        // Run in the tracking pool: the parallel stream uses its workers.
+        try {
+            trackingPool.submit(stage).join();
+        } finally {
+            ImagePool.getDefault().release(gray);
+        }
+        trackingTimeNanos = System.nanoTime() - start;
+        trackingTime.record(trackingTimeNanos);
+    }
+
+    private static void collectBoards(TrackedObject[] tracked,
+            ArrayList<MarkerBoard> boards, ArrayList<MarkerBoard> finders) {
+        for (TrackedObject object : tracked) {
+            if (!(object instanceof MarkerBoard)) {
+                continue;
+            }
+            MarkerBoard board = (MarkerBoard) object;
+            ArrayList<MarkerBoard> list = board.useJavaCVFinder() ? finders : boards;
+            if (!list.contains(board)) {
+                list.add(board);
+            }
+        }
+    }
+
+    private static void update(MarkerBoard board, Camera camera, IplImage img, Object markers,
+            long captureTime) {
+        try {
+            if (board.isTrackedBy(camera)) {
+                board.updateLocation(camera, img, markers, captureTime);
+            }
+        } catch (Exception e) {
+            System.err.println("CameraGrabberThread: error tracking " + board + ": " + e);
         }
     }
 
@@ -60,7 +208,6 @@ public class CameraGrabberThread extends Thread {
         }
     }
 
-
     public void stopThread() {
         stop = true;
     }
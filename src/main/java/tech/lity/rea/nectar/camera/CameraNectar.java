@@ -19,6 +19,12 @@
  */
 package tech.lity.rea.nectar.camera;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.bytedeco.javacpp.opencv_core;
 import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
 import processing.core.PMatrix3D;
@@ -37,16 +43,20 @@ import tech.lity.rea.nectar.markers.DetectedMarker;
 public class CameraNectar extends CameraRGBIRDepth {
 
     private boolean getMode = false;
+    private boolean latestFrameOnly = true;
+    private final FrameStats colorStats = new FrameStats();
+    private final FrameStats depthStats = new FrameStats();
 
     public String DEFAULT_REDIS_HOST = "localhost";
     public int DEFAULT_REDIS_PORT = 6379;
     private DetectedMarker[] currentMarkers;
     private Jedis redisGet;
 
-    protected RedisClient redisClientGenerator = new RedisClientImpl();
+    protected RedisClient redisClientGenerator = new RedisClientPool();
 
     public CameraNectar(String cameraName) {
         this.cameraDescription = cameraName;
+        depthCamera.addFrameListener(this::depthFrameLatched);
     }
 
     public RedisClient getRedisClient() {
@@ -65,20 +75,21 @@ public class CameraNectar extends CameraRGBIRDepth {
      * Update the calibration from Nectar.
      */
     public boolean updateCalibration() {
-        Jedis connection = createConnection();
         boolean set = false;
-        if (useColor) {
-            String key = this.cameraDescription + ":calibration";
-            if (connection.exists(key)) {
-                this.colorCamera.setCalibration(JSONObject.parse(connection.get(key)));
-                set = true;
+        try (Jedis connection = createConnection()) {
+            if (useColor) {
+                String key = this.cameraDescription + ":calibration";
+                if (connection.exists(key)) {
+                    this.colorCamera.setCalibration(JSONObject.parse(connection.get(key)));
+                    set = true;
+                }
             }
-        }
-        if (useDepth) {
-            String key = this.cameraDescription + ":depth:calibration";
-            if (connection.exists(key)) {
-                this.depthCamera.setCalibration(JSONObject.parse(connection.get(key)));
-                set = false;
+            if (useDepth) {
+                String key = this.cameraDescription + ":depth:calibration";
+                if (connection.exists(key)) {
+                    this.depthCamera.setCalibration(JSONObject.parse(connection.get(key)));
+                    set = false;
+                }
             }
         }
         return set;
@@ -102,8 +113,9 @@ public class CameraNectar extends CameraRGBIRDepth {
 
     @Override
     public void start() {
+        Metrics.getDefault().addSource(metricsName(), this);
         try {
-            redisGet = createConnection();
+            redisGet = createDedicatedConnection();
             if (useColor) {
                 startRGB();
                 startMarkerTracking();
@@ -127,13 +139,19 @@ public class CameraNectar extends CameraRGBIRDepth {
     }
 
     private void startRGB() {
-        Jedis redis = createConnection();
-
-        int w = Integer.parseInt(redis.get(cameraDescription + ":width"));
-        int h = Integer.parseInt(redis.get(cameraDescription + ":height"));
-        String format = redis.get(cameraDescription + ":pixelformat");
-        colorCamera.setSize(w, h);
-
+        Jedis redis = createDedicatedConnection();
+
+        // One round trip. Size and format are also given by the frame headers.
+        List<String> params = redis.mget(cameraDescription + ":width",
+                cameraDescription + ":height",
+                cameraDescription + ":pixelformat",
+                cameraDescription + ":calibration");
+        if (params.get(0) != null && params.get(1) != null) {
+            int w = Integer.parseInt(params.get(0));
+            int h = Integer.parseInt(params.get(1));
+            colorCamera.setSize(w, h);
+        }
+        String format = params.get(2);
         if (format != null) {
             colorCamera.setPixelFormat(PixelFormat.valueOf(format));
         } else {
@@ -143,7 +161,7 @@ public class CameraNectar extends CameraRGBIRDepth {
         colorCamera.isConnected = true;
 
         // Load the calibration... 
-        String calibration = redis.get(cameraDescription + ":calibration");
+        String calibration = params.get(3);
         if (calibration == null) {
             System.err.println("Could not find camera calibration at key `" + cameraDescription + ":calibration`.");
             System.exit(-1);
@@ -152,7 +170,9 @@ public class CameraNectar extends CameraRGBIRDepth {
         colorCamera.setCalibration(calib);
 
         if (!getMode) {
-            new RedisThread(redis, new ImageListener(colorCamera.getPixelFormat()), cameraDescription).start();
+            new RedisThread(redis, new ImageListener(colorCamera), cameraDescription).start();
+        } else {
+            redis.close();
         }
     }
 
@@ -160,7 +180,10 @@ public class CameraNectar extends CameraRGBIRDepth {
      * Fetch the calibrations(intrinsics) from Redis / Nectar.
      */
     public void loadCalibrations() {
-        redisGet = createConnection();
+        if (redisGet != null) {
+            redisGet.close();
+        }
+        redisGet = createDedicatedConnection();
         try {
             JSONObject calib = JSONObject.parse(redisGet.get(cameraDescription + ":calibration"));
             colorCamera.setCalibration(calib);
@@ -181,8 +204,10 @@ public class CameraNectar extends CameraRGBIRDepth {
      * Fetch the extrinsics (color-depth) from Redis / Nectar.
      */
     public void loadStereoExtrinsics() {
-        Jedis connection = redisClientGenerator.createConnection();
-        String data = connection.get(cameraDescription + ":extrinsics:depth");
+        String data;
+        try (Jedis connection = createConnection()) {
+            data = connection.get(cameraDescription + ":extrinsics:depth");
+        }
         PMatrix3D extr = HomographyCalibration.CreateMatrixFrom(data);
         depthCamera.setExtrinsics(extr);
     }
@@ -193,8 +218,10 @@ public class CameraNectar extends CameraRGBIRDepth {
      * @param key
      */
     public void loadExtrinsics(String key) {
-        Jedis connection = redisClientGenerator.createConnection();
-        String data = connection.get(cameraDescription + ":extrinsics:" + key);
+        String data;
+        try (Jedis connection = createConnection()) {
+            data = connection.get(cameraDescription + ":extrinsics:" + key);
+        }
         PMatrix3D extr = HomographyCalibration.CreateMatrixFrom(data);
         this.setExtrinsics(extr);
     }
@@ -218,20 +245,23 @@ public class CameraNectar extends CameraRGBIRDepth {
     }
 
     public PMatrix3D loadTableLocation() {
-        Jedis connection = redisClientGenerator.createConnection();
-        String data = connection.get(cameraDescription + ":table");
+        String data;
+        try (Jedis connection = createConnection()) {
+            data = connection.get(cameraDescription + ":table");
+        }
         return HomographyCalibration.CreateMatrixFrom(data);
     }
 
     private void startDepth() {
-        Jedis redis2 = new Jedis(DEFAULT_REDIS_HOST, DEFAULT_REDIS_PORT);
+        Jedis redis2 = createDedicatedConnection();
 
-        String v = redis2.get(cameraDescription + ":depth:width");
-        if (v != null) {
+        List<String> params = redis2.mget(cameraDescription + ":depth:width",
+                cameraDescription + ":depth:height");
+        if (params.get(0) != null) {
 
 //        if (redis.exists(cameraDescription + ":depth:width")) {
-            int w = Integer.parseInt(redis2.get(cameraDescription + ":depth:width"));
-            int h = Integer.parseInt(redis2.get(cameraDescription + ":depth:height"));
+            int w = Integer.parseInt(params.get(0));
+            int h = Integer.parseInt(params.get(1));
             depthCamera.setSize(w, h);
             depthCamera.setFrameRate(30);
             depthCamera.isConnected = true;
@@ -247,20 +277,28 @@ public class CameraNectar extends CameraRGBIRDepth {
                 e.printStackTrace();
             }
             if (!getMode) {
-                new RedisThread(redis2, new ImageListener(depthCamera.getPixelFormat()), cameraDescription + ":depth").start();
+                new RedisThread(redis2, new ImageListener(depthCamera), cameraDescription + ":depth").start();
+                return;
             }
         }
+        redis2.close();
     }
 
     public void startMarkerTracking() {
-        Jedis redis = new Jedis(DEFAULT_REDIS_HOST, DEFAULT_REDIS_PORT);
         if (!getMode) {
-            new RedisThread(redis, new MarkerListener(), cameraDescription + ":markers").start();
+            new RedisThread(createDedicatedConnection(), new MarkerListener(), cameraDescription + ":markers").start();
         }
     }
 
     private void setMarkers(byte[] message) {
+        long arrival = FrameClock.nanoTime();
         currentMarkers = parseMarkerList(new String(message));
+        for (DetectedMarker marker : currentMarkers) {
+            marker.arrivalTimeNanos = arrival;
+            if (marker.captureTimeNanos == 0) {
+                marker.captureTimeNanos = arrival;
+            }
+        }
 //        lastMarkers = currentMarkers;
         super.setMarkers(currentMarkers);
 //        System.out.println("Markers found: " + currentMarkers.length);
@@ -283,6 +321,81 @@ public class CameraNectar extends CameraRGBIRDepth {
         this.getMode = get;
     }
 
+    /**
+     * Latest frame wins (default): when frames arrive faster than they are
+     * processed, only the newest one is processed and the others are
+     * dropped. Otherwise every frame is processed, in order, in the Redis
+     * thread. Set it before start().
+     *
+     * @param latest
+     */
+    public void setLatestFrameOnly(boolean latest) {
+        this.latestFrameOnly = latest;
+    }
+
+    public boolean isLatestFrameOnly() {
+        return latestFrameOnly;
+    }
+
+    public FrameStats getColorStats() {
+        return colorStats;
+    }
+
+    public FrameStats getDepthStats() {
+        return depthStats;
+    }
+
+    private final LatencyHistogram redisLatency = new LatencyHistogram("redis");
+
+    /**
+     * @return durations of the Redis requests of the frames and markers.
+     */
+    public LatencyHistogram getRedisLatency() {
+        return redisLatency;
+    }
+
+    private byte[] timedGet(Jedis connection, byte[] key) {
+        long start = System.nanoTime();
+        byte[] value = connection.get(key);
+        redisLatency.record(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Adds the counters of the received frames and the Redis latency.
+     *
+     * @param prefix
+     * @param out
+     */
+    @Override
+    public void reportMetrics(String prefix, Map<String, Number> out) {
+        super.reportMetrics(prefix, out);
+        reportStats(prefix + ".color.stream", colorStats, out);
+        reportStats(prefix + ".depth.stream", depthStats, out);
+        Metrics.putHistogram(out, prefix + ".latency.redis", redisLatency);
+    }
+
+    @Override
+    public void resetMetrics() {
+        super.resetMetrics();
+        redisLatency.reset();
+    }
+
+    private static void reportStats(String prefix, FrameStats stats, Map<String, Number> out) {
+        if (stats.getReceived() == 0) {
+            return;
+        }
+        out.put(prefix + ".received", stats.getReceived());
+        out.put(prefix + ".processed", stats.getProcessed());
+        out.put(prefix + ".dropped", stats.getDropped());
+    }
+
+    // Get mode: period of the requests. Subscribe mode: wait before
+    // checking the connection again.
+    private static final long GET_PERIOD_MILLIS = 15;
+    private static final long SUBSCRIBE_TIMEOUT_MILLIS = 200;
+    private long grabbedFrames = 0;
+
     @Override
     public void grab() {
         if (this.isClosing()) {
@@ -290,20 +403,25 @@ public class CameraNectar extends CameraRGBIRDepth {
         }
         try {
             if (getMode) {
-
+                long start = System.currentTimeMillis();
                 if (useColor) {
-                    setMarkers(redisGet.get((cameraDescription + ":markers").getBytes()));
-                    setColorImage(redisGet.get(cameraDescription.getBytes()));
+                    setMarkers(timedGet(redisGet, (cameraDescription + ":markers").getBytes()));
+                    setColorImage(timedGet(redisGet, cameraDescription.getBytes()));
                 }
                 if (useDepth) {
-                    setDepthImage(redisGet.get((cameraDescription + ":depth").getBytes()));
+                    setDepthImage(timedGet(redisGet, (cameraDescription + ":depth").getBytes()));
+                }
+                // Polling period, the time of the requests included.
+                long wait = GET_PERIOD_MILLIS - (System.currentTimeMillis() - start);
+                if (wait > 0) {
+                    Thread.sleep(wait);
                 }
-                // sleep only
-                Thread.sleep(15);
             } else {
-                //..nothing the princess is in another thread.
-                Thread.sleep(200);
+                //..nothing the princess is in another thread: wake up when
+                // she sends a frame.
+                grabbedFrames = awaitFrame(grabbedFrames, SUBSCRIBE_TIMEOUT_MILLIS);
             }
+            latchCurrentImages();
         } catch (InterruptedException e) {
             System.err.println("CameraNectar grab Error ! " + e);
         } catch (Exception e) {
@@ -312,74 +430,359 @@ public class CameraNectar extends CameraRGBIRDepth {
         }
     }
 
-    private opencv_core.IplImage rawVideoImage = null;
-    private opencv_core.IplImage rawDepthImage = null;
-
-    private opencv_core.IplImage rawVideoImageBuffer = null;
-    private opencv_core.IplImage rawDepthImageBuffer = null;
-
-    private opencv_core.IplImage currentRawVideoImage = null;
-    private opencv_core.IplImage currentRawDepthImage = null;
+    // Frames are written by the Redis thread and latched in grab().
+    private TripleBuffer<opencv_core.IplImage> colorBuffers = null;
+    private TripleBuffer<opencv_core.IplImage> depthBuffers = null;
+    // Buffers from the ImagePool, given back by the sub cameras (see
+    // Camera.setImageBuffers) when replaced or in close().
+    private final Object bufferLock = new Object();
+
+    // Touch pairing with the synchronizer: the latest matched set, and the
+    // latched depth frame waiting for its color (version -1: none).
+    private final Object touchLock = new Object();
+    private final FrameSynchronizer.Listener touchPairing = this::framesMatched;
+    private FrameSynchronizer.FrameSet matchedSet = null;
+    private SubCamera.Type pairedType = null;
+    private long pendingVersion = -1;
+    private long pendingTimestamp = 0;
+
+    private final FrameHeader colorHeader = new FrameHeader();
+    private final FrameHeader depthHeader = new FrameHeader();
+    // Decoded frames, when they are compressed.
+    private byte[] colorDecoded = null;
+    private byte[] depthDecoded = null;
 
     // Note: Must work with 1 channel ?!
     protected void setColorImage(byte[] message) {
-        int channels = 3;
-        if (rawVideoImage == null || rawVideoImage.width() != colorCamera.width || rawVideoImage.height() != colorCamera.height) {
-            rawVideoImage = opencv_core.IplImage.create(colorCamera.width, colorCamera.height, IPL_DEPTH_8U, 3);
-            rawVideoImageBuffer = opencv_core.IplImage.create(colorCamera.width, colorCamera.height, IPL_DEPTH_8U, 3);
-        }
-
-        int frameSize = colorCamera.width * colorCamera.height * channels;
-        rawVideoImage.getByteBuffer().put(message, 0, frameSize);
-        colorCamera.updateCurrentImage(rawVideoImage);
+        setColorImage(message, 0, FrameClock.nanoTime());
+    }
 
-        this.setChanged();
-        this.notifyObservers("image");
+    /**
+     * @param message frame, with or without header.
+     * @param captureNanos capture time given with the frame, 0 if unknown.
+     * The time in the header is used first.
+     * @param arrivalNanos reception time of the frame.
+     */
+    protected void setColorImage(byte[] message, long captureNanos, long arrivalNanos) {
+        int offset = 0;
+        int stride = 0;
+        int headerStatus = colorHeader.parse(message);
+        if (headerStatus == FrameHeader.INVALID) {
+            return;
+        }
+        if (headerStatus == FrameHeader.VALID) {
+            captureNanos = captureTime(colorHeader, captureNanos);
+            colorCamera.setFrameFormat(colorHeader.getWidth(), colorHeader.getHeight(), colorHeader.getPixelFormat());
+            offset = FrameHeader.HEADER_SIZE;
+            stride = colorHeader.getStride();
+            if (colorHeader.getCodec() != FrameHeader.CODEC_RAW) {
+                colorDecoded = FrameCodec.Registry.decode(colorHeader, message, colorDecoded);
+                if (colorDecoded == null) {
+                    return;
+                }
+                message = colorDecoded;
+                offset = 0;
+                stride = 0;
+            }
+        }
+        int channels = Camera.bytesPerPixel(colorCamera.getPixelFormat());
+        long timestamp = FrameClock.toMillis(captureNanos > 0 ? captureNanos : arrivalNanos);
+        opencv_core.IplImage written;
+        synchronized (bufferLock) {
+            if (isClosing) {
+                return;
+            }
+            colorBuffers = checkBuffers(colorBuffers, colorCamera, IPL_DEPTH_8U, channels);
+            written = colorBuffers.getWriteBuffer();
+            if (!putFrame(written, message, offset, stride, colorCamera.width * channels)) {
+                return;
+            }
+            colorCamera.setNextFrameTime(captureNanos, arrivalNanos);
+        }
+        // Not published yet: only this thread uses the write buffer.
+        pushSyncFrame(colorCamera, written, timestamp);
+        colorCamera.publishCurrentImage();
+
+        // Frame listeners are called when grab() latches the frame. Observers are
+        // still notified, in this thread, when there are some.
+        if (countObservers() > 0) {
+            this.setChanged();
+            this.notifyObservers("image");
+        }
     }
 
     protected void setDepthImage(byte[] message) {
+        setDepthImage(message, 0, FrameClock.nanoTime());
+    }
+
+    /**
+     * @param message frame, with or without header.
+     * @param captureNanos capture time given with the frame, 0 if unknown.
+     * The time in the header is used first.
+     * @param arrivalNanos reception time of the frame.
+     */
+    protected void setDepthImage(byte[] message, long captureNanos, long arrivalNanos) {
         int iplDepth = IPL_DEPTH_8U;
         int channels = 2;
 
-        int frameSize = depthCamera.width * depthCamera.height * channels;
-        // TODO: Handle as a sort buffer instead of byte.
-        if (rawDepthImage == null || rawDepthImage.width() != depthCamera.width || rawDepthImage.height() != depthCamera.height) {
-            rawDepthImage = opencv_core.IplImage.create(depthCamera.width, depthCamera.height, iplDepth, channels);
-            rawDepthImageBuffer = opencv_core.IplImage.create(depthCamera.width, depthCamera.height, iplDepth, channels);
-
-            currentRawDepthImage = rawDepthImage;
+        int offset = 0;
+        int stride = 0;
+        int headerStatus = depthHeader.parse(message);
+        if (headerStatus == FrameHeader.INVALID) {
+            return;
         }
-
-        // Try some buffering.
-        if (currentRawDepthImage == rawDepthImage) {
-            rawDepthImage.getByteBuffer().put(message, 0, frameSize);
-            depthCamera.updateCurrentImage(rawDepthImage);
-            depthCamera.updateCurrentImage(rawDepthImage);
-            currentRawDepthImage = rawDepthImageBuffer;
-        } else {
-            rawDepthImageBuffer.getByteBuffer().put(message, 0, frameSize);
-            depthCamera.updateCurrentImage(rawDepthImageBuffer);
-            depthCamera.updateCurrentImage(rawDepthImageBuffer);
-            currentRawDepthImage = rawDepthImage;
+        if (headerStatus == FrameHeader.VALID) {
+            captureNanos = captureTime(depthHeader, captureNanos);
+            depthCamera.setFrameFormat(depthHeader.getWidth(), depthHeader.getHeight(), depthHeader.getPixelFormat());
+            offset = FrameHeader.HEADER_SIZE;
+            stride = depthHeader.getStride();
+            if (depthHeader.getCodec() != FrameHeader.CODEC_RAW) {
+                depthDecoded = FrameCodec.Registry.decode(depthHeader, message, depthDecoded);
+                if (depthDecoded == null) {
+                    return;
+                }
+                message = depthDecoded;
+                offset = 0;
+                stride = 0;
+            }
+        }
+        int rowSize = depthCamera.width * channels;
+        long timestamp = FrameClock.toMillis(captureNanos > 0 ? captureNanos : arrivalNanos);
+        // TODO: Handle as a sort buffer instead of byte.
+        opencv_core.IplImage written;
+        synchronized (bufferLock) {
+            if (isClosing) {
+                return;
+            }
+            depthBuffers = checkBuffers(depthBuffers, depthCamera, iplDepth, channels);
+            written = depthBuffers.getWriteBuffer();
+            if (!putFrame(written, message, offset, stride, rowSize)) {
+                return;
+            }
+            depthCamera.setNextFrameTime(captureNanos, arrivalNanos);
         }
+        // Not published yet: only this thread uses the write buffer.
+        pushSyncFrame(depthCamera, written, timestamp);
+        depthCamera.publishCurrentImage();
 
 //        rawDepthImage.getByteBuffer().put(message, 0, frameSize);
-        // TODO: Send Touch Event ?
+        // The touch is updated when grab() latches this frame: depthFrameLatched().
+    }
+
+    /**
+     * Touch update, when the depth frame becomes current. The color and IR
+     * frames are latched before the depth by the same grab().
+     */
+    private void depthFrameLatched(CameraFrame frame) {
+        FrameSynchronizer sync = synchronizer;
+        if (sync != null && (getActingCamera() == IRCamera || getActingCamera() == colorCamera || useColor)) {
+            // Color of the same time as the depth, or depth only.
+            SubCamera.Type type = getActingCamera() == IRCamera ? SubCamera.Type.IR : SubCamera.Type.COLOR;
+            long timestamp = FrameClock.toMillis(frame.getCaptureTimeNanos());
+            FrameSynchronizer.FrameSet set = null;
+            boolean depthOnly;
+            synchronized (touchLock) {
+                if (type != pairedType) {
+                    sync.setStreams(SubCamera.Type.DEPTH, type);
+                    pairedType = type;
+                }
+                if (isPair(matchedSet, type, timestamp)) {
+                    set = matchedSet.retain();
+                    depthOnly = false;
+                } else {
+                    // The color is late: framesMatched() completes the pair.
+                    // When the previous pair was never completed, or there
+                    // is no color at all, the depth goes alone.
+                    depthOnly = pendingVersion >= 0 || sync.getReceivedFrames(type) == 0;
+                    pendingVersion = depthOnly ? -1 : frame.getFrameVersion();
+                    pendingTimestamp = timestamp;
+                }
+            }
+            if (set != null) {
+                touchWithColor(set, type);
+            } else if (depthOnly) {
+                ((WithTouchInput) depthCamera).newTouchImage();
+            }
+            return;
+        }
         if (getActingCamera() == IRCamera) {
-            ((WithTouchInput) depthCamera).newTouchImageWithColor(IRCamera.currentImage);
+            ((WithTouchInput) depthCamera).newTouchImageWithColor(IRCamera.getIplImage());
             return;
         }
-        if (getActingCamera() == colorCamera || useColor && colorCamera.currentImage != null) {
-            ((WithTouchInput) depthCamera).newTouchImageWithColor(colorCamera.currentImage);
+        if (getActingCamera() == colorCamera || useColor && colorCamera.getIplImage() != null) {
+            ((WithTouchInput) depthCamera).newTouchImageWithColor(colorCamera.getIplImage());
             return;
         }
 
         ((WithTouchInput) depthCamera).newTouchImage();
     }
 
+    /**
+     * Synchronizer listener, in the Redis threads: keeps the latest set, and
+     * completes the pair of the latched depth frame when its color is late.
+     */
+    private void framesMatched(FrameSynchronizer.FrameSet set) {
+        SubCamera.Type type;
+        synchronized (touchLock) {
+            if (matchedSet != null) {
+                matchedSet.release();
+            }
+            matchedSet = set.retain();
+            type = pairedType;
+            if (pendingVersion < 0 || !isPair(set, type, pendingTimestamp)) {
+                return;
+            }
+            boolean current = depthCamera.getLatchedVersion() == pendingVersion;
+            pendingVersion = -1;
+            if (!current) {
+                // A newer depth frame is latched, it has its own pair.
+                return;
+            }
+            set.retain();
+        }
+        touchWithColor(set, type);
+    }
+
+    private static boolean isPair(FrameSynchronizer.FrameSet set, SubCamera.Type type, long depthTimestamp) {
+        return set != null && set.getImage(type) != null
+                && set.getTimestamp(SubCamera.Type.DEPTH) == depthTimestamp;
+    }
+
+    // Releases the set.
+    private void touchWithColor(FrameSynchronizer.FrameSet set, SubCamera.Type type) {
+        try {
+            ((WithTouchInput) depthCamera).newTouchImageWithColor(set.getImage(type));
+        } finally {
+            set.release();
+        }
+    }
+
+    private void clearTouchPairing() {
+        synchronized (touchLock) {
+            if (matchedSet != null) {
+                matchedSet.release();
+            }
+            matchedSet = null;
+            pairedType = null;
+            pendingVersion = -1;
+        }
+    }
+
+    /**
+     * The touch input gets the color (or IR when the camera acts as IR) frame
+     * paired with each depth frame, even when the color arrives after the
+     * depth.
+     *
+     * @param sync
+     */
+    @Override
+    public void setFrameSync(boolean sync) {
+        super.setFrameSync(sync);
+        FrameSynchronizer current = synchronizer;
+        if (current != null) {
+            current.removeListener(touchPairing);
+            current.addListener(touchPairing);
+        } else {
+            clearTouchPairing();
+        }
+    }
+
+    /**
+     * @return the capture time of the header, or the given one when the
+     * sender did not set it.
+     */
+    private static long captureTime(FrameHeader header, long captureNanos) {
+        return header.getTimestampNanos() > 0 ? header.getTimestampNanos() : captureNanos;
+    }
+
+    /**
+     * Allocate the frame buffers of a camera, again when its size changes.
+     *
+     * @param buffers current buffers, can be null.
+     * @param camera
+     * @param iplDepth
+     * @param channels
+     * @return buffers matching the camera.
+     */
+    private TripleBuffer<opencv_core.IplImage> checkBuffers(TripleBuffer<opencv_core.IplImage> buffers,
+            Camera camera, int iplDepth, int channels) {
+        if (buffers != null) {
+            opencv_core.IplImage img = buffers.getWriteBuffer();
+            if (img.width() == camera.width && img.height() == camera.height
+                    && img.depth() == iplDepth && img.nChannels() == channels) {
+                return buffers;
+            }
+        }
+        ImagePool pool = ImagePool.getDefault();
+        buffers = new TripleBuffer<>(
+                pool.acquire(camera.width, camera.height, iplDepth, channels),
+                pool.acquire(camera.width, camera.height, iplDepth, channels),
+                pool.acquire(camera.width, camera.height, iplDepth, channels));
+        // The camera gives the previous ones back when they are not read.
+        camera.setImageBuffers(buffers);
+        return buffers;
+    }
+
+    /**
+     * Copy the frame to the image, row by row when the strides differ.
+     *
+     * @param img destination
+     * @param message frame data
+     * @param offset start of the pixels in message
+     * @param stride size of a row in message, 0 for packed rows.
+     * @param rowSize size of a row of pixels.
+     * @return false if the message is too small.
+     */
+    private boolean putFrame(opencv_core.IplImage img, byte[] message, int offset, int stride, int rowSize) {
+        int height = img.height();
+        if (stride == 0) {
+            stride = rowSize;
+        }
+        if (message.length - offset < stride * (height - 1) + rowSize) {
+            System.err.println("CameraNectar: frame too small: " + (message.length - offset)
+                    + " bytes for " + img.width() + "x" + height);
+            return false;
+        }
+        ByteBuffer buffer = img.getByteBuffer();
+        int widthStep = img.widthStep();
+        if (stride == rowSize && widthStep == rowSize) {
+            buffer.put(message, offset, rowSize * height);
+            return true;
+        }
+        for (int y = 0; y < height; y++) {
+            buffer.position(y * widthStep);
+            buffer.put(message, offset + y * stride, rowSize);
+        }
+        return true;
+    }
+
     @Override
     public void close() {
         this.setClosing();
+        Metrics.getDefault().removeSource(metricsName());
+        if (redisGet != null) {
+            redisGet.close();
+            redisGet = null;
+        }
+        synchronized (bufferLock) {
+            if (colorBuffers != null) {
+                colorCamera.releaseImageBuffers();
+            }
+            if (depthBuffers != null) {
+                depthCamera.releaseImageBuffers();
+            }
+            colorBuffers = null;
+            depthBuffers = null;
+            if (synchronizer != null) {
+                synchronizer.clear();
+            }
+        }
+        clearTouchPairing();
+    }
+
+    // Name of the camera in the default metrics.
+    private String metricsName() {
+        return "camera." + cameraDescription;
     }
 
     @Override
@@ -424,47 +827,129 @@ public class CameraNectar extends CameraRGBIRDepth {
                     System.out.println("Redis connection error: " + e);
                     System.out.println("Retrying to connect...");
                     client.close();
-                    client = createConnection();
+                    client = createDedicatedConnection();
                 }
             }
+            client.close();
         }
     }
 
     private Jedis checkConnection(Jedis connection) {
         if (connection == null || !connection.isConnected()) {
-            connection = createConnection();
+            if (connection != null) {
+                connection.close();
+            }
+            connection = createDedicatedConnection();
         }
         return connection;
     }
 
     class ImageListener extends BinaryJedisPubSub {
 
-        PixelFormat format;
+        SubCamera camera;
         Jedis getConnection;
-
-        public ImageListener(PixelFormat format) {
-            this.format = format;
-            getConnection = createConnection();
+        private final FrameStats stats;
+        private final FrameHeader header = new FrameHeader();
+
+        // Latest frame wins: the newest message waits here for the worker.
+        private final AtomicReference<Received> pending = new AtomicReference<>();
+        private final Semaphore available = new Semaphore(0);
+        private byte[] channel;
+
+        public ImageListener(SubCamera camera) {
+            this.camera = camera;
+            this.stats = camera == depthCamera ? depthStats : colorStats;
+            getConnection = createDedicatedConnection();
+            if (latestFrameOnly) {
+                Thread worker = new Thread(this::processLatest, "Nectar frames " + cameraDescription);
+                worker.setDaemon(true);
+                worker.start();
+            }
         }
 
         @Override
         public void onMessage(byte[] channel, byte[] message) {
+            long arrival = FrameClock.nanoTime();
+            stats.frameReceived();
+            if (!latestFrameOnly) {
+                process(channel, message, arrival);
+                return;
+            }
+            this.channel = channel;
+            // The previous frame was not processed yet: it is replaced.
+            if (pending.getAndSet(new Received(message, arrival)) != null) {
+                stats.frameDropped();
+            }
+            available.release();
+        }
+
+        private void processLatest() {
+            while (!isClosing) {
+                try {
+                    if (!available.tryAcquire(200, TimeUnit.MILLISECONDS)) {
+                        continue;
+                    }
+                    available.drainPermits();
+                    Received received = pending.getAndSet(null);
+                    if (received != null) {
+                        process(channel, received.message, received.arrivalNanos);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void process(byte[] channel, byte[] message, long arrivalNanos) {
             try {
-                getConnection = checkConnection(getConnection);
-                if (this.format == PixelFormat.BGR || this.format == PixelFormat.RGB) {
-                    byte[] data = getConnection.get(channel);
-                    setColorImage(data);
+                int frameSize = camera.width * camera.height * Camera.bytesPerPixel(camera.getPixelFormat());
+                byte[] data = getData(channel, message, frameSize);
+                // Notification of the VideoEmitter: it has the capture time.
+                JSONObject info = null;
+                if (message != data && message.length > 0 && message[0] == '{') {
+                    info = JSONObject.parse(new String(message));
                 }
-                if (this.format == PixelFormat.OPENNI_2_DEPTH) {
-                    byte[] data = getConnection.get(channel);
-                    setDepthImage(data);
+                long captureNanos = info == null ? 0 : info.getLong("captureNanos", 0);
+                if (camera == depthCamera) {
+                    setDepthImage(data, captureNanos, arrivalNanos);
+                } else {
+                    setColorImage(data, captureNanos, arrivalNanos);
                 }
+                frameProcessed(info, data);
             } catch (Exception e) {
                 System.out.println("Exception reading data: ");
                 e.printStackTrace();
             }
         }
 
+        /**
+         * Sequence number and timestamp from the frame header, or from the
+         * notification sent by the VideoEmitter.
+         */
+        private void frameProcessed(JSONObject info, byte[] data) {
+            if (header.read(data)) {
+                stats.frameProcessed(header.getSequence(), header.getTimestamp());
+                return;
+            }
+            if (info != null) {
+                stats.frameProcessed(info.getLong("imageCount", -1), info.getLong("timestamp", -1));
+                return;
+            }
+            stats.frameProcessed(-1, -1);
+        }
+
+        /**
+         * The frame is either in the message (publish data mode), or the
+         * message is a notification and the frame is read at the key.
+         */
+        private byte[] getData(byte[] channel, byte[] message, int frameSize) {
+            if (FrameHeader.hasHeader(message) || message != null && message.length >= frameSize) {
+                return message;
+            }
+            getConnection = checkConnection(getConnection);
+            return timedGet(getConnection, channel);
+        }
+
         @Override
         public void onSubscribe(byte[] channel, int subscribedChannels) {
         }
@@ -486,6 +971,20 @@ public class CameraNectar extends CameraRGBIRDepth {
         }
     }
 
+    /**
+     * A message and its reception time.
+     */
+    private static final class Received {
+
+        final byte[] message;
+        final long arrivalNanos;
+
+        Received(byte[] message, long arrivalNanos) {
+            this.message = message;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
     class MarkerListener extends BinaryJedisPubSub {
 
         public MarkerListener() {
@@ -533,6 +1032,8 @@ public class CameraNectar extends CameraRGBIRDepth {
 //        System.out.println("json: " + msg.getJSONArray("markers").size());
 
         JSONArray markers = msg.getJSONArray("markers");
+        // Capture time of the image the markers were found in, if given.
+        long captureNanos = msg.getLong("captureNanos", 0);
 
         if (markers != null && markers.size() > 0) {
             detectedMarkers = new DetectedMarker[markers.size()];
@@ -554,16 +1055,32 @@ public class CameraNectar extends CameraRGBIRDepth {
                         corners.getFloat(6),
                         corners.getFloat(7));
 
+                dm.captureTimeNanos = captureNanos;
                 detectedMarkers[i] = dm;
             }
         }
         return detectedMarkers;
     }
 
+    /**
+     * Get a connection from the RedisClient, close() it after use.
+     *
+     * @return
+     */
     public Jedis createConnection() {
         return redisClientGenerator.createConnection();
     }
 
+    /**
+     * Connection kept by a thread (subscriptions, get mode): it is not taken
+     * from the pool of the RedisClient.
+     *
+     * @return
+     */
+    private Jedis createDedicatedConnection() {
+        return RedisClientPool.createDedicatedConnection(redisClientGenerator);
+    }
+
     public String getRedisHost() {
         return redisClientGenerator.getRedisHost();
     }
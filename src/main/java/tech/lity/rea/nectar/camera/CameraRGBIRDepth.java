@@ -20,6 +20,7 @@ package tech.lity.rea.nectar.camera;
 
 import tech.lity.rea.javacvprocessing.ProjectiveDeviceP;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 import org.bytedeco.javacpp.opencv_core;
 import org.bytedeco.javacv.OpenKinectFrameGrabber;
@@ -76,6 +77,81 @@ public abstract class CameraRGBIRDepth extends Camera{
         return this.colorCamera;
     }
 
+    // Pairing of the frames by timestamp, null when it is not used.
+    protected volatile FrameSynchronizer synchronizer = null;
+
+    /**
+     * Pair the color, depth and IR frames by their timestamps. The touch
+     * input then gets the color frame of its depth frame.
+     *
+     * @param sync
+     */
+    public void setFrameSync(boolean sync) {
+        if (sync && synchronizer == null) {
+            synchronizer = new FrameSynchronizer();
+        }
+        if (!sync && synchronizer != null) {
+            synchronizer.clear();
+            synchronizer = null;
+        }
+    }
+
+    /**
+     * @return the synchronizer, null when setFrameSync() is off.
+     */
+    public FrameSynchronizer getFrameSynchronizer() {
+        return synchronizer;
+    }
+
+    /**
+     * Producer side: give a new frame of a sub camera to the synchronizer.
+     *
+     * @param camera
+     * @param img the frame, copied.
+     * @param timestamp capture time in milliseconds.
+     */
+    protected void pushSyncFrame(SubCamera camera, opencv_core.IplImage img, long timestamp) {
+        FrameSynchronizer sync = synchronizer;
+        if (sync != null && camera.getType() != null) {
+            sync.push(camera.getType(), img, timestamp);
+        }
+    }
+
+    /**
+     * Metrics of the main camera, of the sub cameras in use, and of the
+     * synchronizer.
+     *
+     * @param prefix
+     * @param out
+     */
+    @Override
+    public void reportMetrics(String prefix, Map<String, Number> out) {
+        super.reportMetrics(prefix, out);
+        if (useColor && colorCamera != null) {
+            colorCamera.reportMetrics(prefix + ".color", out);
+        }
+        if (useDepth && depthCamera != null) {
+            depthCamera.reportMetrics(prefix + ".depth", out);
+        }
+        if (useIR && IRCamera != null) {
+            IRCamera.reportMetrics(prefix + ".ir", out);
+        }
+        FrameSynchronizer sync = synchronizer;
+        if (sync != null) {
+            sync.reportMetrics(prefix + ".sync", out);
+        }
+    }
+
+    @Override
+    public void resetMetrics() {
+        super.resetMetrics();
+        for (SubCamera camera : new SubCamera[]{colorCamera, depthCamera, IRCamera}) {
+            if (camera != null) {
+                camera.resetMetrics();
+            }
+        }
+    }
+
     public SubCamera getActingCamera() {
         return this.actAsCamera;
     }
@@ -135,6 +211,22 @@ public abstract class CameraRGBIRDepth extends Camera{
         }
     }
 
+    /**
+     * Latch the frames published by the grabber: the sub cameras read the
+     * images and times latched here until the next grab().
+     */
+    protected void latchCurrentImages() {
+        if (colorCamera != null) {
+            colorCamera.latchCurrentImage();
+        }
+        if (IRCamera != null) {
+            IRCamera.latchCurrentImage();
+        }
+        if (depthCamera != null) {
+            depthCamera.latchCurrentImage();
+        }
+    }
+
     protected abstract void internalStart() throws Exception;
 
     protected boolean isStarting = false;
@@ -187,9 +279,7 @@ public abstract class CameraRGBIRDepth extends Camera{
                 depthCamera.grab();
             }
 
-            if (actAsCamera != null) {
-                currentImage = actAsCamera.currentImage;
-            }
+            latchCurrentImages();
         } catch (Exception e) {
             System.out.println("Exception :" + e);
             e.printStackTrace();
@@ -366,10 +456,9 @@ public abstract class CameraRGBIRDepth extends Camera{
     void setThread(SubCamera subCam) {
         if (thread == null) {
             thread = new CameraGrabberThread(this);
-//            thread.setCompute(subCam.trackSheets);
+            thread.setCompute(subCam.trackSheets || trackSheets);
             subCam.thread = thread;
 
-//            thread.setCompute(trackSheets);
             thread.start();
         } else {
             System.err.println("Camera: Error Thread already launched");
@@ -385,10 +474,10 @@ public abstract class CameraRGBIRDepth extends Camera{
         if (thread == null) {
             thread = new CameraGrabberThread(this);
             if (this.actAsCamera != null) {
-//                thread.setCompute(actAsCamera.trackSheets);
+                thread.setCompute(actAsCamera.trackSheets || trackSheets);
                 actAsCamera.thread = thread;
             } else {
-//                thread.setCompute(trackSheets);
+                thread.setCompute(trackSheets);
             }
 
             thread.start();
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+/**
+ * Lookup table from 16 bits depth values (millimeters) to display colors.
+ *
+ * The table has one entry per depth value, it is built again only when the
+ * range, the mode or the band size change. Entries are packed R, G, B, A
+ * bytes (big endian int), as written in the texture buffers.
+ *
+ * @author Jeremy Laviole
+ */
+public class DepthColorMap {
+
+    public enum Mode {
+        GRAYSCALE, JET, TURBO,
+        /**
+         * Stripes every band size, to check heights (of a table...).
+         */
+        BANDED
+    }
+
+    public static final int DEFAULT_NEAR = 300;
+    public static final int DEFAULT_FAR = 3300;
+    public static final int DEFAULT_BAND_SIZE = 10;
+
+    /**
+     * Used by the CamImages without a specific map.
+     */
+    public static final DepthColorMap DEFAULT = new DepthColorMap();
+
+    private int near = DEFAULT_NEAR;
+    private int far = DEFAULT_FAR;
+    private int bandSize = DEFAULT_BAND_SIZE;
+    private Mode mode = Mode.GRAYSCALE;
+
+    private volatile int[] table;
+
+    public DepthColorMap() {
+        build();
+    }
+
+    public DepthColorMap(int near, int far, Mode mode) {
+        this.near = near;
+        this.far = far;
+        this.mode = mode;
+        build();
+    }
+
+    /**
+     * @return the table, 65536 entries.
+     */
+    public int[] getTable() {
+        return table;
+    }
+
+    /**
+     * Set the displayed range, depths out of it are clamped.
+     *
+     * @param near in millimeters
+     * @param far in millimeters
+     */
+    public synchronized void setRange(int near, int far) {
+        if (near == this.near && far == this.far) {
+            return;
+        }
+        this.near = near;
+        this.far = Math.max(far, near + 1);
+        build();
+    }
+
+    public synchronized void setMode(Mode mode) {
+        if (mode == this.mode) {
+            return;
+        }
+        this.mode = mode;
+        build();
+    }
+
+    public synchronized void setBandSize(int bandSize) {
+        if (bandSize == this.bandSize || bandSize <= 0) {
+            return;
+        }
+        this.bandSize = bandSize;
+        build();
+    }
+
+    public int getNear() {
+        return near;
+    }
+
+    public int getFar() {
+        return far;
+    }
+
+    public int getBandSize() {
+        return bandSize;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // The new table replaces the old one at once, frames being converted
+    // keep the old one.
+    private void build() {
+        int[] t = new int[65536];
+        float range = far - near;
+        // No depth: black.
+        t[0] = 255;
+        for (int d = 1; d < t.length; d++) {
+            float v = Math.min(1f, Math.max(0f, (d - near) / range));
+            switch (mode) {
+                case JET:
+                    t[d] = jet(v);
+                    break;
+                case TURBO:
+                    t[d] = turbo(v);
+                    break;
+                case BANDED:
+                    int color = jet(v);
+                    t[d] = (d / bandSize) % 2 == 0 ? color : darken(color);
+                    break;
+                case GRAYSCALE:
+                default:
+                    int g = (int) (v * 255f);
+                    t[d] = rgba(g, g, g);
+            }
+        }
+        this.table = t;
+    }
+
+    private static int rgba(int r, int g, int b) {
+        return r << 24 | g << 16 | b << 8 | 255;
+    }
+
+    private static int rgba(float r, float g, float b) {
+        return rgba(toByte(r), toByte(g), toByte(b));
+    }
+
+    private static int toByte(float v) {
+        return (int) (Math.min(1f, Math.max(0f, v)) * 255f);
+    }
+
+    private static int darken(int color) {
+        return (color >>> 1) & 0x7F7F7F00 | 255;
+    }
+
+    private static int jet(float v) {
+        return rgba(1.5f - Math.abs(4 * v - 3),
+                1.5f - Math.abs(4 * v - 2),
+                1.5f - Math.abs(4 * v - 1));
+    }
+
+    // Polynomial approximation of the Turbo colormap.
+    private static int turbo(float t) {
+        float r = 0.13572138f + t * (4.61539260f + t * (-42.66032258f + t * (132.13108234f + t * (-152.94239396f + t * 59.28637943f))));
+        float g = 0.09140261f + t * (2.19418839f + t * (4.84296658f + t * (-14.18503333f + t * (4.27729857f + t * 2.82956604f))));
+        float b = 0.10667330f + t * (12.64194608f + t * (-60.58204836f + t * (110.36276771f + t * (-89.90310912f + t * 27.34824973f))));
+        return rgba(r, g, b);
+    }
+
+    @Override
+    public String toString() {
+        return "DepthColorMap " + mode + " " + near + "-" + far + "mm";
+    }
+}
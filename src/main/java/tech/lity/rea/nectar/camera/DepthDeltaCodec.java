@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.Arrays;
+import java.util.Random;
+import tech.lity.rea.nectar.camera.Camera.PixelFormat;
+
+/**
+ * Lossless codec for 16 bits depth frames, big endian as in the rest of the
+ * depth pipeline (ImageUtils, RowConverter).
+ *
+ * Each sample is predicted by its left neighbour (the one above for the
+ * first column), the difference is zigzag encoded and written as a varint:
+ * one byte for differences in [-64, 63], three bytes at most.
+ *
+ * @author Jeremy Laviole
+ */
+public class DepthDeltaCodec implements FrameCodec {
+
+    @Override
+    public byte getId() {
+        return FrameHeader.CODEC_DEPTH_DELTA;
+    }
+
+    @Override
+    public boolean supports(PixelFormat format) {
+        return format == PixelFormat.OPENNI_2_DEPTH
+                || format == PixelFormat.REALSENSE_Z16
+                || format == PixelFormat.DEPTH_KINECT_MM;
+    }
+
+    @Override
+    public int maxEncodedLength(int width, int height, PixelFormat format) {
+        return width * height * 3;
+    }
+
+    @Override
+    public int encode(byte[] src, int srcOffset, int width, int height, PixelFormat format,
+            byte[] dst, int dstOffset) {
+        int rowSize = width * 2;
+        int k = dstOffset;
+        for (int y = 0; y < height; y++) {
+            int i = srcOffset + y * rowSize;
+            int prev = y == 0 ? 0 : (src[i - rowSize] & 255) << 8 | (src[i - rowSize + 1] & 255);
+            int end = i + rowSize;
+            for (; i < end; i += 2) {
+                int v = (src[i] & 255) << 8 | (src[i + 1] & 255);
+                int d = v - prev;
+                prev = v;
+                int z = (d << 1) ^ (d >> 31);
+                while (z >= 0x80) {
+                    dst[k++] = (byte) (z | 0x80);
+                    z >>>= 7;
+                }
+                dst[k++] = (byte) z;
+            }
+        }
+        return k - dstOffset;
+    }
+
+    @Override
+    public boolean decode(byte[] src, int srcOffset, int srcLength, int width, int height,
+            PixelFormat format, byte[] dst) {
+        int rowSize = width * 2;
+        if (dst.length < rowSize * height) {
+            return false;
+        }
+        int k = srcOffset;
+        int srcEnd = srcOffset + srcLength;
+        for (int y = 0; y < height; y++) {
+            int i = y * rowSize;
+            int prev = y == 0 ? 0 : (dst[i - rowSize] & 255) << 8 | (dst[i - rowSize + 1] & 255);
+            int end = i + rowSize;
+            for (; i < end; i += 2) {
+                int z = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (k >= srcEnd || shift > 14) {
+                        return false;
+                    }
+                    b = src[k++];
+                    z |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                int v = prev + ((z >>> 1) ^ -(z & 1));
+                if ((v & ~0xFFFF) != 0) {
+                    return false;
+                }
+                dst[i] = (byte) (v >> 8);
+                dst[i + 1] = (byte) v;
+                prev = v;
+            }
+        }
+        return k == srcEnd;
+    }
+
+    /**
+     * Round trip check and throughput on a synthetic depth frame.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        int w = 640, h = 480;
+        int iterations = 200;
+        Random random = new Random(42);
+        byte[] depth = new byte[w * h * 2];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                // Tilted plane with noise and holes.
+                int v = 800 + y + x / 4 + random.nextInt(5);
+                if (random.nextInt(50) == 0) {
+                    v = 0;
+                }
+                depth[(y * w + x) * 2] = (byte) (v >> 8);
+                depth[(y * w + x) * 2 + 1] = (byte) v;
+            }
+        }
+
+        DepthDeltaCodec codec = new DepthDeltaCodec();
+        byte[] encoded = new byte[codec.maxEncodedLength(w, h, PixelFormat.OPENNI_2_DEPTH)];
+        byte[] decoded = new byte[depth.length];
+
+        int length = codec.encode(depth, 0, w, h, PixelFormat.OPENNI_2_DEPTH, encoded, 0);
+        boolean ok = codec.decode(encoded, 0, length, w, h, PixelFormat.OPENNI_2_DEPTH, decoded)
+                && Arrays.equals(depth, decoded);
+        System.out.println("Round trip: " + (ok ? "OK" : "FAILED"));
+        System.out.println("Size: " + depth.length + " -> " + length
+                + " (ratio " + ((float) depth.length / length) + ")");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.encode(depth, 0, w, h, PixelFormat.OPENNI_2_DEPTH, encoded, 0);
+        }
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.decode(encoded, 0, length, w, h, PixelFormat.OPENNI_2_DEPTH, decoded);
+        }
+        long decodeTime = System.nanoTime() - start;
+
+        float mb = (float) depth.length * iterations / (1024 * 1024);
+        System.out.println("Encode: " + (encodeTime / 1e6f / iterations) + " ms/frame, "
+                + (mb / (encodeTime / 1e9f)) + " MB/s");
+        System.out.println("Decode: " + (decodeTime / 1e6f / iterations) + " ms/frame, "
+                + (mb / (decodeTime / 1e9f)) + " MB/s");
+    }
+}
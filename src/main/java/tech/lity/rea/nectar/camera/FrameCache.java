@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import tech.lity.rea.nectar.camera.Camera.PixelFormat;
+
+/**
+ * Images derived from the current frame of a camera: gray image, then half
+ * and quarter resolution gray images (2x2 averages).
+ *
+ * Each level is computed at the first request for a frame version, and
+ * shared by all the trackers: they must not modify it. The images come from
+ * the ImagePool. The levels of the previous version are kept when a new one
+ * is requested, they are released with the version after: a reader may use
+ * the levels it got during the next frame. To keep one longer, use
+ * getRetained() and release the image in ImagePool.getDefault() after.
+ *
+ * @author Jeremy Laviole
+ */
+public class FrameCache {
+
+    public static final int GRAY = 0;
+    public static final int HALF = 1;
+    public static final int QUARTER = 2;
+    public static final int LEVELS = 3;
+
+    private static final int PARALLEL_MIN_PIXELS = 320 * 240;
+
+    // Levels of one frame version.
+    private static final class Entry {
+
+        final IplImage[] levels = new IplImage[LEVELS];
+        IplImage source = null;
+        long version = -1;
+
+        boolean matches(IplImage img, long frameVersion) {
+            return img == source && frameVersion == version;
+        }
+
+        void release() {
+            for (int i = 0; i < LEVELS; i++) {
+                ImagePool.getDefault().release(levels[i]);
+                levels[i] = null;
+            }
+            source = null;
+            version = -1;
+        }
+    }
+
+    private Entry current = new Entry();
+    private Entry previous = new Entry();
+    private boolean formatWarning = false;
+
+    private final ThreadLocal<byte[]> rows = new ThreadLocal<>();
+
+    /**
+     * Get a level of the cache, computed if needed.
+     *
+     * @param img current image of the camera.
+     * @param frameVersion its version.
+     * @param format its pixel format.
+     * @param level GRAY, HALF or QUARTER.
+     * @return the image, null if the format is not an 8 bits color or gray
+     * format. Valid until the levels of two newer versions are requested.
+     */
+    public synchronized IplImage get(IplImage img, long frameVersion, PixelFormat format, int level) {
+        if (img == null || level < 0 || level >= LEVELS) {
+            return null;
+        }
+        Entry entry = current;
+        if (!entry.matches(img, frameVersion)) {
+            if (previous.matches(img, frameVersion)) {
+                entry = previous;
+            } else {
+                // The previous levels may still be read, the older ones not.
+                previous.release();
+                previous = current;
+                entry = new Entry();
+                entry.source = img;
+                entry.version = frameVersion;
+                current = entry;
+            }
+        }
+        if (entry.levels[level] != null) {
+            return entry.levels[level];
+        }
+        if (level == GRAY) {
+            entry.levels[GRAY] = toGray(img, format);
+        } else {
+            IplImage upper = get(img, frameVersion, format, level - 1);
+            if (upper != null) {
+                entry.levels[level] = downscale(upper);
+            }
+        }
+        return entry.levels[level];
+    }
+
+    /**
+     * Like get(), with a reference added for the caller: the image stays
+     * valid until it is released in ImagePool.getDefault().
+     *
+     * @param img current image of the camera.
+     * @param frameVersion its version.
+     * @param format its pixel format.
+     * @param level GRAY, HALF or QUARTER.
+     * @return the image to release, null if the format has no gray version.
+     */
+    public synchronized IplImage getRetained(IplImage img, long frameVersion, PixelFormat format, int level) {
+        IplImage levelImage = get(img, frameVersion, format, level);
+        if (levelImage != null) {
+            ImagePool.getDefault().retain(levelImage);
+        }
+        return levelImage;
+    }
+
+    /**
+     * @return the frame version of the last cached levels, -1 when empty.
+     */
+    public synchronized long getFrameVersion() {
+        return current.version;
+    }
+
+    /**
+     * Release the images to the pool. Retained levels stay valid until
+     * their last release.
+     */
+    public synchronized void clear() {
+        current.release();
+        previous.release();
+    }
+
+    // Offsets of red, green and blue, bytes per pixel. Null for other formats.
+    private static int[] layout(PixelFormat format) {
+        if (format == null) {
+            return null;
+        }
+        switch (format) {
+            case BGR:
+                return new int[]{2, 1, 0, 3};
+            case RGB:
+                return new int[]{0, 1, 2, 3};
+            case ARGB:
+                return new int[]{1, 2, 3, 4};
+            case RGBA:
+                return new int[]{0, 1, 2, 4};
+            case GRAY:
+                return new int[]{0, 0, 0, 1};
+            default:
+                return null;
+        }
+    }
+
+    private IplImage toGray(IplImage img, PixelFormat format) {
+        int[] layout = layout(format);
+        if (layout == null || img.depth() != IPL_DEPTH_8U || img.nChannels() != layout[3]) {
+            if (!formatWarning) {
+                System.err.println("FrameCache: no gray image for the format " + format + ".");
+                formatWarning = true;
+            }
+            return null;
+        }
+        int width = img.width();
+        int height = img.height();
+        IplImage gray = ImagePool.getDefault().acquire(width, height, IPL_DEPTH_8U, 1);
+        if (gray == null) {
+            return null;
+        }
+        ByteBuffer in = img.getByteBuffer();
+        ByteBuffer out = gray.getByteBuffer();
+        int srcStep = img.widthStep();
+        int dstStep = gray.widthStep();
+        int bpp = layout[3];
+        int r = layout[0], g = layout[1], b = layout[2];
+
+        forEachBand(width, height, (start, end) -> {
+            ByteBuffer src = in.duplicate();
+            ByteBuffer dst = out.duplicate();
+            byte[] row = row(width * bpp);
+            for (int y = start; y < end; y++) {
+                src.position(y * srcStep);
+                src.get(row, 0, width * bpp);
+                if (bpp > 1) {
+                    // Written in place: pixel x is read before it is overwritten.
+                    for (int x = 0, k = 0; x < width; x++, k += bpp) {
+                        row[x] = (byte) ((77 * (row[k + r] & 255) + 150 * (row[k + g] & 255)
+                                + 29 * (row[k + b] & 255) + 128) >> 8);
+                    }
+                }
+                dst.position(y * dstStep);
+                dst.put(row, 0, width);
+            }
+        });
+        return gray;
+    }
+
+    /**
+     * Half size image, each pixel is the mean of 2x2 pixels.
+     */
+    private IplImage downscale(IplImage img) {
+        int srcWidth = img.width();
+        int srcHeight = img.height();
+        int width = (srcWidth + 1) / 2;
+        int height = (srcHeight + 1) / 2;
+        IplImage half = ImagePool.getDefault().acquire(width, height, IPL_DEPTH_8U, 1);
+        if (half == null) {
+            return null;
+        }
+        ByteBuffer in = img.getByteBuffer();
+        ByteBuffer out = half.getByteBuffer();
+        int srcStep = img.widthStep();
+        int dstStep = half.widthStep();
+
+        forEachBand(srcWidth, height, (start, end) -> {
+            ByteBuffer src = in.duplicate();
+            ByteBuffer dst = out.duplicate();
+            byte[] row = row(srcWidth * 2);
+            for (int y = start; y < end; y++) {
+                int y0 = 2 * y;
+                int y1 = Math.min(y0 + 1, srcHeight - 1);
+                src.position(y0 * srcStep);
+                src.get(row, 0, srcWidth);
+                src.position(y1 * srcStep);
+                src.get(row, srcWidth, srcWidth);
+                for (int x = 0; x < width; x++) {
+                    int x0 = 2 * x;
+                    int x1 = Math.min(x0 + 1, srcWidth - 1);
+                    int sum = (row[x0] & 255) + (row[x1] & 255)
+                            + (row[srcWidth + x0] & 255) + (row[srcWidth + x1] & 255);
+                    row[x] = (byte) ((sum + 2) >> 2);
+                }
+                dst.position(y * dstStep);
+                dst.put(row, 0, width);
+            }
+        });
+        return half;
+    }
+
+    private byte[] row(int size) {
+        byte[] row = rows.get();
+        if (row == null || row.length < size) {
+            row = new byte[size];
+            rows.set(row);
+        }
+        return row;
+    }
+
+    private interface Band {
+
+        void rows(int start, int end);
+    }
+
+    private static void forEachBand(int width, int height, Band band) {
+        if (width * height < PARALLEL_MIN_PIXELS) {
+            band.rows(0, height);
+            return;
+        }
+        int bands = ForkJoinPool.getCommonPoolParallelism() * 2;
+        int rowsPerBand = (height + bands - 1) / bands;
+        IntStream.range(0, bands).parallel().forEach(b -> {
+            int start = b * rowsPerBand;
+            band.rows(start, Math.min(height, start + rowsPerBand));
+        });
+    }
+}
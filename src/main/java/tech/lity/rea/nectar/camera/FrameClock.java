@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+/**
+ * Clock of the frame timestamps: nanoseconds since the epoch, monotonic.
+ *
+ * It is System.nanoTime() anchored to the wall clock when the class is
+ * loaded: the times of one process never go backwards, and the times of
+ * processes on the same computer can be compared, to the precision of the
+ * wall clock (about a millisecond).
+ *
+ * @author Jeremy Laviole
+ */
+public final class FrameClock {
+
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long EPOCH_NANOS = System.currentTimeMillis() * 1_000_000L;
+
+    private FrameClock() {
+    }
+
+    /**
+     * @return current time, in nanoseconds since the epoch.
+     */
+    public static long nanoTime() {
+        return EPOCH_NANOS + (System.nanoTime() - BASE_NANOS);
+    }
+
+    /**
+     * @return milliseconds since the class was loaded, as PApplet.millis().
+     */
+    public static int millis() {
+        return (int) ((System.nanoTime() - BASE_NANOS) / 1_000_000L);
+    }
+
+    public static long toMillis(long nanos) {
+        return nanos / 1_000_000L;
+    }
+
+    public static long fromMillis(long millis) {
+        return millis * 1_000_000L;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.concurrent.ConcurrentHashMap;
+import tech.lity.rea.nectar.camera.Camera.PixelFormat;
+
+/**
+ * Compression of the frames sent through Redis. The codec used is given by
+ * the codec field of the FrameHeader.
+ *
+ * Pixels are packed: rows of width * bytesPerPixel bytes.
+ *
+ * @author Jeremy Laviole
+ */
+public interface FrameCodec {
+
+    /**
+     * @return identifier sent in the frame header.
+     */
+    public byte getId();
+
+    public boolean supports(PixelFormat format);
+
+    /**
+     * @param width
+     * @param height
+     * @param format
+     * @return size of the largest encoded frame.
+     */
+    public int maxEncodedLength(int width, int height, PixelFormat format);
+
+    /**
+     * Encode a frame.
+     *
+     * @param src packed pixels
+     * @param srcOffset start of the pixels in src
+     * @param width
+     * @param height
+     * @param format
+     * @param dst destination, of at least maxEncodedLength bytes after
+     * dstOffset.
+     * @param dstOffset
+     * @return number of bytes written.
+     */
+    public int encode(byte[] src, int srcOffset, int width, int height, PixelFormat format,
+            byte[] dst, int dstOffset);
+
+    /**
+     * Decode a frame.
+     *
+     * @param src encoded frame
+     * @param srcOffset start of the encoded frame in src
+     * @param srcLength size of the encoded frame
+     * @param width
+     * @param height
+     * @param format
+     * @param dst packed pixels, width * height * bytesPerPixel bytes.
+     * @return false if the encoded frame is invalid.
+     */
+    public boolean decode(byte[] src, int srcOffset, int srcLength, int width, int height,
+            PixelFormat format, byte[] dst);
+
+    /**
+     * Codecs known by the receivers.
+     */
+    public static class Registry {
+
+        private static final ConcurrentHashMap<Byte, FrameCodec> codecs = new ConcurrentHashMap<>();
+
+        static {
+            register(new DepthDeltaCodec());
+        }
+
+        public static void register(FrameCodec codec) {
+            codecs.put(codec.getId(), codec);
+        }
+
+        /**
+         * @param id
+         * @return the codec, null if it is unknown.
+         */
+        public static FrameCodec get(byte id) {
+            return codecs.get(id);
+        }
+
+        /**
+         * Decode the payload of a frame.
+         *
+         * @param header header read from message
+         * @param message whole frame, header included.
+         * @param dst destination, reused if it has the size of the frame.
+         * @return the packed pixels, null if the codec is unknown or the frame
+         * is invalid.
+         */
+        public static byte[] decode(FrameHeader header, byte[] message, byte[] dst) {
+            FrameCodec codec = get(header.getCodec());
+            if (codec == null) {
+                System.err.println("FrameCodec: unknown codec " + header.getCodec());
+                return null;
+            }
+            int size = header.getWidth() * header.getHeight() * Camera.bytesPerPixel(header.getPixelFormat());
+            if (dst == null || dst.length != size) {
+                dst = new byte[size];
+            }
+            if (!codec.decode(message, FrameHeader.HEADER_SIZE, header.getPayloadLength(),
+                    header.getWidth(), header.getHeight(), header.getPixelFormat(), dst)) {
+                System.err.println("FrameCodec: invalid frame " + header);
+                return null;
+            }
+            return dst;
+        }
+    }
+}
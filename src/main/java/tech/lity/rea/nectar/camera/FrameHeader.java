@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import tech.lity.rea.nectar.camera.Camera.PixelFormat;
+
+/**
+ * Binary header placed in front of the frames sent through Redis.
+ *
+ * Layout (big endian, 40 bytes): magic (int), version (short), pixel format
+ * (byte), codec (byte), sequence number (long), capture time (long), width,
+ * height, stride and payload length (int). The payload follows the header.
+ *
+ * Version 2: the capture time is in FrameClock nanoseconds. Version 1 headers
+ * (time in milliseconds) are still read.
+ *
+ * An instance is meant to be reused: read() does not allocate.
+ *
+ * @author Jeremy Laviole
+ */
+public class FrameHeader {
+
+    public static final int MAGIC = 0x4e465248; // "NFRH"
+    public static final short VERSION = 2;
+    private static final short VERSION_MILLIS = 1;
+    public static final int HEADER_SIZE = 40;
+
+    // Results of parse().
+    public static final int NO_HEADER = 0;
+    public static final int VALID = 1;
+    public static final int INVALID = -1;
+
+    public static final byte CODEC_RAW = 0;
+    public static final byte CODEC_DEPTH_DELTA = 1;
+
+    // The pixel format is sent as its ordinal: do not reorder Camera.PixelFormat.
+    private static final PixelFormat[] FORMATS = PixelFormat.values();
+
+    private long sequence;
+    private long timestampNanos;
+    private int width;
+    private int height;
+    private int stride;
+    private PixelFormat pixelFormat;
+    private byte codec = CODEC_RAW;
+    private int payloadLength;
+    private boolean invalidWarning = false;
+
+    public FrameHeader() {
+    }
+
+    /**
+     * @param sequence
+     * @param timestampNanos capture time, see FrameClock.
+     * @param width
+     * @param height
+     * @param stride
+     * @param format
+     * @param payloadLength
+     * @return this
+     */
+    public FrameHeader set(long sequence, long timestampNanos, int width, int height,
+            int stride, PixelFormat format, int payloadLength) {
+        this.sequence = sequence;
+        this.timestampNanos = timestampNanos;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.pixelFormat = format;
+        this.payloadLength = payloadLength;
+        return this;
+    }
+
+    /**
+     * Check the magic number, the frame can still be invalid.
+     *
+     * @param data
+     * @return true if data starts with a frame header.
+     */
+    public static boolean hasHeader(byte[] data) {
+        return data != null && data.length >= HEADER_SIZE && readInt(data, 0) == MAGIC;
+    }
+
+    /**
+     * Parse the header at the beginning of data.
+     *
+     * @param data
+     * @return false if there is no header, or the header is invalid.
+     */
+    public boolean read(byte[] data) {
+        return parse(data) == VALID;
+    }
+
+    /**
+     * Parse the header at the beginning of data. A frame with an invalid
+     * header (unknown version or format, payload that does not fit) must be
+     * dropped: it is not raw pixels.
+     *
+     * @param data
+     * @return NO_HEADER, VALID or INVALID.
+     */
+    public int parse(byte[] data) {
+        if (!hasHeader(data)) {
+            return NO_HEADER;
+        }
+        int version = readShort(data, 4);
+        if (version != VERSION && version != VERSION_MILLIS) {
+            return invalid("version " + version);
+        }
+        int formatId = data[6] & 255;
+        if (formatId >= FORMATS.length) {
+            return invalid("pixel format " + formatId);
+        }
+        pixelFormat = FORMATS[formatId];
+        codec = data[7];
+        sequence = readLong(data, 8);
+        timestampNanos = readLong(data, 16);
+        if (version == VERSION_MILLIS) {
+            timestampNanos = FrameClock.fromMillis(timestampNanos);
+        }
+        width = readInt(data, 24);
+        height = readInt(data, 28);
+        stride = readInt(data, 32);
+        payloadLength = readInt(data, 36);
+        if (!isValid(data.length)) {
+            return invalid(toString() + " in " + data.length + " bytes");
+        }
+        return VALID;
+    }
+
+    private int invalid(String reason) {
+        if (!invalidWarning) {
+            System.err.println("FrameHeader: invalid frame header, " + reason + ". The frames are dropped.");
+            invalidWarning = true;
+        }
+        return INVALID;
+    }
+
+    /**
+     * O(1) frame validation.
+     *
+     * @param messageLength length of the whole message.
+     * @return
+     */
+    public boolean isValid(int messageLength) {
+        if (width <= 0 || height <= 0 || payloadLength < 0
+                || payloadLength > messageLength - HEADER_SIZE) {
+            return false;
+        }
+        if (codec == CODEC_RAW) {
+            return stride >= width * Camera.bytesPerPixel(pixelFormat)
+                    && payloadLength >= stride * height;
+        }
+        return true;
+    }
+
+    /**
+     * Write the header at the beginning of out.
+     *
+     * @param out array of at least HEADER_SIZE bytes.
+     */
+    public void write(byte[] out) {
+        writeInt(out, 0, MAGIC);
+        out[4] = (byte) (VERSION >> 8);
+        out[5] = (byte) VERSION;
+        out[6] = (byte) pixelFormat.ordinal();
+        out[7] = codec;
+        writeLong(out, 8, sequence);
+        writeLong(out, 16, timestampNanos);
+        writeInt(out, 24, width);
+        writeInt(out, 28, height);
+        writeInt(out, 32, stride);
+        writeInt(out, 36, payloadLength);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (short) ((data[offset] & 255) << 8 | (data[offset + 1] & 255));
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 255) << 24
+                | (data[offset + 1] & 255) << 16
+                | (data[offset + 2] & 255) << 8
+                | (data[offset + 3] & 255);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (long) readInt(data, offset) << 32 | (readInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeInt(byte[] out, int offset, int v) {
+        out[offset] = (byte) (v >> 24);
+        out[offset + 1] = (byte) (v >> 16);
+        out[offset + 2] = (byte) (v >> 8);
+        out[offset + 3] = (byte) v;
+    }
+
+    private static void writeLong(byte[] out, int offset, long v) {
+        writeInt(out, offset, (int) (v >> 32));
+        writeInt(out, offset + 4, (int) v);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return capture time, in milliseconds.
+     */
+    public long getTimestamp() {
+        return FrameClock.toMillis(timestampNanos);
+    }
+
+    /**
+     * @return capture time, in FrameClock nanoseconds. 0 if not set.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+
+    public byte getCodec() {
+        return codec;
+    }
+
+    public void setCodec(byte codec) {
+        this.codec = codec;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame " + sequence + " " + width + "x" + height + " " + pixelFormat
+                + " stride " + stride + " payload " + payloadLength + " at " + getTimestamp();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the frames received from a video stream.
+ *
+ * Received = processed + dropped + pending (at most one).
+ *
+ * @author Jeremy Laviole
+ */
+public class FrameStats {
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+
+    // Sequence number and timestamp given by the emitter, -1 if unknown.
+    private volatile long lastSequence = -1;
+    private volatile long lastTimestamp = -1;
+
+    void frameReceived() {
+        received.incrementAndGet();
+    }
+
+    void frameDropped() {
+        dropped.incrementAndGet();
+    }
+
+    void frameProcessed(long sequence, long timestamp) {
+        processed.incrementAndGet();
+        this.lastSequence = sequence;
+        this.lastTimestamp = timestamp;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public void reset() {
+        received.set(0);
+        dropped.set(0);
+        processed.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Frames received " + getReceived() + " processed " + getProcessed()
+                + " dropped " + getDropped() + " last " + lastSequence;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import tech.lity.rea.nectar.camera.SubCamera.Type;
+
+/**
+ * Pairing of the color, depth and IR frames of a CameraRGBIRDepth by their
+ * timestamps.
+ *
+ * The last frames of each stream are copied in a short history. Each frame
+ * of the reference stream (depth by default) is matched with the closest
+ * frame of the required streams, when their timestamps differ by at most the
+ * maximum skew. The matched sets are given to the listeners. Frames that
+ * leave the history without being matched are counted as unmatched.
+ *
+ * Each pushed frame is copied once, in the thread pushing it: a memory copy
+ * of the frame size per stream. The images given out are references of the
+ * ImagePool, a slot takes a new image when the previous one is still used.
+ *
+ * @author Jeremy Laviole
+ */
+public class FrameSynchronizer implements Metrics.Source {
+
+    public static final int DEFAULT_HISTORY = 4;
+    public static final long DEFAULT_MAX_SKEW_MILLIS = 16;
+
+    private static final int STREAMS = Type.values().length;
+
+    /**
+     * Called with each matched set, in the thread pushing the frames: the
+     * Redis threads of CameraNectar. It must return quickly. The set is valid
+     * during the call, retain() it to keep it longer.
+     */
+    public interface Listener {
+
+        public void framesMatched(FrameSet set);
+    }
+
+    private static final class Slot {
+
+        IplImage image = null;
+        long timestamp;
+        boolean used = false;
+        boolean matched = false;
+    }
+
+    private final Slot[][] history;
+    private final int[] next = new int[STREAMS];
+
+    private Type reference = Type.DEPTH;
+    private final boolean[] required = new boolean[STREAMS];
+    private long maxSkew = DEFAULT_MAX_SKEW_MILLIS;
+
+    private final long[] received = new long[STREAMS];
+    private final long[] unmatched = new long[STREAMS];
+    private long matchedSets = 0;
+    private FrameSet latest = null;
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public FrameSynchronizer() {
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param historySize frames kept per stream.
+     */
+    public FrameSynchronizer(int historySize) {
+        history = new Slot[STREAMS][Math.max(1, historySize)];
+        for (Slot[] slots : history) {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Slot();
+            }
+        }
+        required[Type.COLOR.ordinal()] = true;
+    }
+
+    public synchronized void setMaxSkewMillis(long skew) {
+        this.maxSkew = skew;
+    }
+
+    public synchronized long getMaxSkewMillis() {
+        return maxSkew;
+    }
+
+    /**
+     * @param reference the stream matched with the others. Default: DEPTH.
+     * @param required the streams in each set. Default: COLOR.
+     */
+    public synchronized void setStreams(Type reference, Type... required) {
+        this.reference = reference;
+        for (int i = 0; i < STREAMS; i++) {
+            this.required[i] = false;
+        }
+        for (Type type : required) {
+            if (type != reference) {
+                this.required[type.ordinal()] = true;
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add a frame: it is copied in the history, and matched when it
+     * completes a set.
+     *
+     * @param type stream of the frame.
+     * @param img
+     * @param timestamp capture time, in milliseconds, same clock for all the
+     * streams.
+     */
+    public void push(Type type, IplImage img, long timestamp) {
+        FrameSet set;
+        synchronized (this) {
+            int s = type.ordinal();
+            Slot[] slots = history[s];
+            Slot slot = slots[next[s]];
+            next[s] = (next[s] + 1) % slots.length;
+            if (slot.used && !slot.matched) {
+                unmatched[s]++;
+            }
+            // A new image: the previous one may still be used by a set.
+            ImagePool.getDefault().release(slot.image);
+            slot.image = ImagePool.getDefault().acquire(img);
+            copy(img, slot.image);
+            slot.timestamp = timestamp;
+            slot.used = true;
+            slot.matched = false;
+            received[s]++;
+
+            set = type == reference ? match(slot) : matchPending();
+        }
+        if (set != null) {
+            try {
+                for (Listener listener : listeners) {
+                    listener.framesMatched(set);
+                }
+            } finally {
+                set.release();
+            }
+        }
+    }
+
+    /**
+     * A late frame of a required stream can complete the latest reference
+     * frame.
+     */
+    private FrameSet matchPending() {
+        Slot[] slots = history[reference.ordinal()];
+        Slot last = slots[(next[reference.ordinal()] + slots.length - 1) % slots.length];
+        if (!last.used || last.matched) {
+            return null;
+        }
+        return match(last);
+    }
+
+    private FrameSet match(Slot ref) {
+        Slot[] found = new Slot[STREAMS];
+        found[reference.ordinal()] = ref;
+        long skew = 0;
+        for (int s = 0; s < STREAMS; s++) {
+            if (!required[s]) {
+                continue;
+            }
+            Slot closest = closest(s, ref.timestamp);
+            if (closest == null) {
+                return null;
+            }
+            found[s] = closest;
+            skew = Math.max(skew, Math.abs(closest.timestamp - ref.timestamp));
+        }
+        IplImage[] images = new IplImage[STREAMS];
+        long[] timestamps = new long[STREAMS];
+        for (int s = 0; s < STREAMS; s++) {
+            if (found[s] != null) {
+                found[s].matched = true;
+                images[s] = found[s].image;
+                timestamps[s] = found[s].timestamp;
+            }
+        }
+        matchedSets++;
+        if (latest != null) {
+            latest.release();
+        }
+        latest = new FrameSet(images, timestamps, skew);
+        // One reference for latest, one for the listeners.
+        return latest.retain();
+    }
+
+    private Slot closest(int stream, long timestamp) {
+        Slot best = null;
+        long bestSkew = Long.MAX_VALUE;
+        for (Slot slot : history[stream]) {
+            if (!slot.used) {
+                continue;
+            }
+            long skew = Math.abs(slot.timestamp - timestamp);
+            if (skew <= maxSkew && skew < bestSkew) {
+                best = slot;
+                bestSkew = skew;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The frame of a stream closest to a timestamp, within the maximum skew.
+     *
+     * @param type
+     * @param timestamp
+     * @return the image, null if there is none close enough. Release it in
+     * ImagePool.getDefault() after use.
+     */
+    public synchronized IplImage findClosest(Type type, long timestamp) {
+        Slot slot = closest(type.ordinal(), timestamp);
+        if (slot == null) {
+            return null;
+        }
+        slot.matched = true;
+        return ImagePool.getDefault().retain(slot.image);
+    }
+
+    private static void copy(IplImage src, IplImage dst) {
+        ByteBuffer in = src.getByteBuffer().duplicate();
+        ByteBuffer out = dst.getByteBuffer().duplicate();
+        in.rewind();
+        out.rewind();
+        in.limit(Math.min(in.capacity(), out.capacity()));
+        out.put(in);
+    }
+
+    /**
+     * @return the last matched set, null if none. release() it after use.
+     */
+    public synchronized FrameSet getLatest() {
+        return latest == null ? null : latest.retain();
+    }
+
+    public synchronized long getReceivedFrames(Type type) {
+        return received[type.ordinal()];
+    }
+
+    /**
+     * @param type
+     * @return frames of the stream that left the history without being
+     * matched.
+     */
+    public synchronized long getUnmatchedFrames(Type type) {
+        return unmatched[type.ordinal()];
+    }
+
+    public synchronized long getMatchedSets() {
+        return matchedSets;
+    }
+
+    /**
+     * Release the history images to the ImagePool.
+     */
+    public synchronized void clear() {
+        for (Slot[] slots : history) {
+            for (Slot slot : slots) {
+                ImagePool.getDefault().release(slot.image);
+                slot.image = null;
+                slot.used = false;
+            }
+        }
+        if (latest != null) {
+            latest.release();
+        }
+        latest = null;
+    }
+
+    @Override
+    public synchronized void reportMetrics(String prefix, Map<String, Number> out) {
+        out.put(prefix + ".sets", matchedSets);
+        for (Type type : Type.values()) {
+            int s = type.ordinal();
+            if (received[s] > 0) {
+                String name = prefix + "." + type.name().toLowerCase();
+                out.put(name + ".received", received[s]);
+                out.put(name + ".unmatched", unmatched[s]);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("FrameSynchronizer: " + matchedSets + " sets");
+        for (Type type : Type.values()) {
+            int s = type.ordinal();
+            if (received[s] > 0) {
+                sb.append(", ").append(type).append(" ").append(received[s])
+                        .append(" received ").append(unmatched[s]).append(" unmatched");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Frames with close timestamps. The images are references of the
+     * ImagePool, valid until the last release() of the set.
+     */
+    public static class FrameSet {
+
+        private final IplImage[] images;
+        private final long[] timestamps;
+        private final long skew;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        FrameSet(IplImage[] images, long[] timestamps, long skew) {
+            this.images = images;
+            this.timestamps = timestamps;
+            this.skew = skew;
+            for (IplImage img : images) {
+                if (img != null) {
+                    ImagePool.getDefault().retain(img);
+                }
+            }
+        }
+
+        /**
+         * Add a reference to the set, release() it after use.
+         *
+         * @return this set.
+         */
+        public FrameSet retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        /**
+         * Release a reference, the images go back to the pool with the last
+         * one.
+         */
+        public void release() {
+            if (references.decrementAndGet() != 0) {
+                return;
+            }
+            for (IplImage img : images) {
+                ImagePool.getDefault().release(img);
+            }
+        }
+
+        /**
+         * @param type
+         * @return the image, null if the stream is not in the set.
+         */
+        public IplImage getImage(Type type) {
+            return images[type.ordinal()];
+        }
+
+        public long getTimestamp(Type type) {
+            return timestamps[type.ordinal()];
+        }
+
+        /**
+         * @return largest difference with the reference timestamp, in
+         * milliseconds.
+         */
+        public long getSkew() {
+            return skew;
+        }
+    }
+}
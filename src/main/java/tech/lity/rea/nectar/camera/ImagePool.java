@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+
+/**
+ * Pool of native images, by size, depth and number of channels.
+ *
+ * Images are taken with acquire() and given back with release(). An image can
+ * be shared: retain() adds a reference, it goes back to the pool when all the
+ * references are released. The free images kept in the pool use at most
+ * getMaxRetainedBytes() bytes of native memory, the oldest ones are freed
+ * first.
+ *
+ * Images not released are leaks: reportLeaks() lists them, with the stack of
+ * the acquisition when setTrackAllocations(true) was called.
+ *
+ * @author Jeremy Laviole
+ */
+public class ImagePool implements Metrics.Source {
+
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 256L * 1024 * 1024;
+
+    private static final ImagePool DEFAULT = new ImagePool();
+
+    /**
+     * @return the pool used by TrackedView, FrameCache and CameraNectar.
+     */
+    public static ImagePool getDefault() {
+        return DEFAULT;
+    }
+
+    private static final class Key {
+
+        final int width, height, depth, channels;
+
+        Key(int width, int height, int depth, int channels) {
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.channels = channels;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return width == k.width && height == k.height && depth == k.depth && channels == k.channels;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((width * 31 + height) * 31 + depth) * 31 + channels;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " depth " + depth + " channels " + channels;
+        }
+    }
+
+    private static final class Lease {
+
+        final Key key;
+        final long size;
+        final long time = System.currentTimeMillis();
+        final Throwable origin;
+        int references = 1;
+
+        Lease(Key key, long size, Throwable origin) {
+            this.key = key;
+            this.size = size;
+            this.origin = origin;
+        }
+    }
+
+    private final HashMap<Key, ArrayDeque<IplImage>> free = new HashMap<>();
+    // Free images, oldest first: the ones freed when the cap is reached.
+    private final LinkedHashMap<IplImage, Key> freeOrder = new LinkedHashMap<>();
+    private final IdentityHashMap<IplImage, Lease> leased = new IdentityHashMap<>();
+
+    private long maxRetainedBytes = DEFAULT_MAX_RETAINED_BYTES;
+    private long retainedBytes = 0, leasedBytes = 0;
+    private long allocations = 0, reuses = 0;
+    private boolean trackAllocations = false;
+
+    public ImagePool() {
+    }
+
+    /**
+     * Get an image, from the pool or newly allocated. Its content is
+     * undefined.
+     *
+     * @param width
+     * @param height
+     * @param depth IPL_DEPTH_*
+     * @param channels
+     * @return the image, release() it after use.
+     */
+    public synchronized IplImage acquire(int width, int height, int depth, int channels) {
+        Key key = new Key(width, height, depth, channels);
+        IplImage img = null;
+        ArrayDeque<IplImage> images = free.get(key);
+        if (images != null && !images.isEmpty()) {
+            img = images.pop();
+            freeOrder.remove(img);
+            retainedBytes -= img.imageSize();
+            reuses++;
+        } else {
+            img = IplImage.create(width, height, depth, channels);
+            if (img == null) {
+                System.err.println("ImagePool: cannot create the image " + key);
+                return null;
+            }
+            allocations++;
+        }
+        long size = img.imageSize();
+        leased.put(img, new Lease(key, size,
+                trackAllocations ? new Throwable("Image acquired") : null));
+        leasedBytes += size;
+        return img;
+    }
+
+    /**
+     * @param model
+     * @return an image with the size, depth and channels of model.
+     */
+    public IplImage acquire(IplImage model) {
+        return acquire(model.width(), model.height(), model.depth(), model.nChannels());
+    }
+
+    /**
+     * Add a reference to an image of the pool.
+     *
+     * @param img
+     * @return img
+     */
+    public synchronized IplImage retain(IplImage img) {
+        Lease lease = leased.get(img);
+        if (lease == null) {
+            System.err.println("ImagePool: retain of an image not acquired from the pool.");
+            return img;
+        }
+        lease.references++;
+        return img;
+    }
+
+    /**
+     * Release a reference to an image. The last release puts it back in the
+     * pool, the image must not be used after.
+     *
+     * @param img image from acquire(), null is ignored.
+     */
+    public synchronized void release(IplImage img) {
+        if (img == null) {
+            return;
+        }
+        Lease lease = leased.get(img);
+        if (lease == null) {
+            System.err.println("ImagePool: release of an image not acquired from the pool, or released twice.");
+            return;
+        }
+        if (--lease.references > 0) {
+            return;
+        }
+        leased.remove(img);
+        leasedBytes -= lease.size;
+
+        if (lease.size > maxRetainedBytes) {
+            img.release();
+            return;
+        }
+        free.computeIfAbsent(lease.key, k -> new ArrayDeque<>()).push(img);
+        freeOrder.put(img, lease.key);
+        retainedBytes += lease.size;
+        trim(maxRetainedBytes);
+    }
+
+    /**
+     * Free the oldest images of the pool until it uses at most maxBytes.
+     */
+    private void trim(long maxBytes) {
+        Iterator<Map.Entry<IplImage, Key>> it = freeOrder.entrySet().iterator();
+        while (retainedBytes > maxBytes && it.hasNext()) {
+            Map.Entry<IplImage, Key> entry = it.next();
+            IplImage img = entry.getKey();
+            it.remove();
+            free.get(entry.getValue()).remove(img);
+            retainedBytes -= img.imageSize();
+            img.release();
+        }
+    }
+
+    /**
+     * Free all the images of the pool. The leased images are not affected.
+     */
+    public synchronized void clear() {
+        trim(0);
+        free.clear();
+    }
+
+    /**
+     * @param bytes native memory kept for the free images.
+     */
+    public synchronized void setMaxRetainedBytes(long bytes) {
+        this.maxRetainedBytes = bytes;
+        trim(bytes);
+    }
+
+    public synchronized long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    /**
+     * @param track keep the stack of each acquire(), for reportLeaks().
+     */
+    public synchronized void setTrackAllocations(boolean track) {
+        this.trackAllocations = track;
+    }
+
+    /**
+     * @return native memory of the free images.
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return native memory of the images in use.
+     */
+    public synchronized long getLeasedBytes() {
+        return leasedBytes;
+    }
+
+    public synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * Print the images in use for more than a given time.
+     *
+     * @param olderThanMillis
+     * @return the number of images reported.
+     */
+    public synchronized int reportLeaks(long olderThanMillis) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Lease lease : leased.values()) {
+            if (now - lease.time < olderThanMillis) {
+                continue;
+            }
+            count++;
+            System.err.println("ImagePool: image " + lease.key + " in use for "
+                    + (now - lease.time) / 1000 + "s, " + lease.references + " reference(s).");
+            if (lease.origin != null) {
+                lease.origin.printStackTrace();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void reportMetrics(String prefix, Map<String, Number> out) {
+        out.put(prefix + ".leased", leased.size());
+        out.put(prefix + ".leased_bytes", leasedBytes);
+        out.put(prefix + ".free", freeOrder.size());
+        out.put(prefix + ".free_bytes", retainedBytes);
+        out.put(prefix + ".allocations", allocations);
+        out.put(prefix + ".reuses", reuses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImagePool: " + leased.size() + " in use (" + leasedBytes + " bytes), "
+                + freeOrder.size() + " free (" + retainedBytes + " bytes), "
+                + allocations + " allocations, " + reuses + " reuses.";
+    }
+}
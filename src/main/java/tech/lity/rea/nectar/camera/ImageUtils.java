@@ -7,11 +7,14 @@ package tech.lity.rea.nectar.camera;
 
 import tech.lity.rea.nectar.camera.Camera;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 import static org.bytedeco.javacpp.opencv_calib3d.cvFindHomography;
 import org.bytedeco.javacpp.opencv_core;
-import static org.bytedeco.javacpp.opencv_core.cvCreateImage;
 import static org.bytedeco.javacpp.opencv_core.cvCreateMat;
 import org.bytedeco.javacpp.opencv_imgproc;
 import org.bytedeco.javacv.JavaCV;
@@ -27,21 +30,116 @@ import processing.opengl.Texture;
  */
 public class ImageUtils {
 
-    public static void byteBufferDepthK1MMtoARGB(ByteBuffer gray, ByteBuffer argb) {
-        byte[] depthRaw = new byte[2];
-        for (int i = 0; i < argb.capacity(); i += 4) {
-            gray.get(depthRaw);
-            int d = (depthRaw[0] & 255) << 8 | (depthRaw[1] & 255);
-            // min depth: 400
-            byte dValue = (byte) ((d - 300.0F) / 3000.0F * 255.0F);
-            argb.put(dValue);
-            argb.put(dValue);
-            argb.put(dValue);
-            argb.put((byte) 255);
-        }
+    // Conversions to ARGB (or RGBA) buffers, see convertBytes.
+    private static final int CONVERSION_CHUNK = 4096;
+    private static final int PARALLEL_MIN_PIXELS = 640 * 480;
+    private static boolean parallelConversion = false;
+
+    private static final ThreadLocal<byte[]> byteChunk = ThreadLocal.withInitial(() -> new byte[CONVERSION_CHUNK * 4]);
+    private static final ThreadLocal<float[]> floatChunk = ThreadLocal.withInitial(() -> new float[CONVERSION_CHUNK]);
+    private static final ThreadLocal<int[]> intChunk = ThreadLocal.withInitial(() -> new int[CONVERSION_CHUNK]);
+
+    // Durations of the conversions to PImage and of the warps.
+    private static final LatencyHistogram conversionTime = Metrics.getDefault().histogram("image.conversion");
+    private static final LatencyHistogram remapTime = Metrics.getDefault().histogram("image.remap");
+
+    /**
+     * Convert the large images by bands of pixels on the common fork-join
+     * pool. The result is the same.
+     *
+     * @param parallel
+     */
+    public static void setParallelConversion(boolean parallel) {
+        parallelConversion = parallel;
+    }
+
+    public static boolean isParallelConversion() {
+        return parallelConversion;
+    }
+
+    /**
+     * Conversion of n pixels, each output pixel is an int: its 4 bytes in big
+     * endian order.
+     */
+    interface ByteKernel {
+
+        void convert(byte[] in, int[] out, int n);
+    }
+
+    interface FloatKernel {
+
+        void convert(float[] in, int[] out, int n);
+    }
+
+    /**
+     * Convert pixels from the position of src, by chunks. The position of src
+     * is moved after the pixels read, argb is rewound.
+     */
+    private static void convertBytes(ByteBuffer src, int bytesPerPixel, ByteBuffer argb,
+            int pixels, ByteKernel kernel) {
+        int start = src.position();
+        forEachBand(pixels, (first, last) -> {
+            ByteBuffer in = src.duplicate();
+            in.position(start + first * bytesPerPixel);
+            IntBuffer out = intView(argb, first);
+            byte[] inChunk = byteChunk.get();
+            int[] outChunk = intChunk.get();
+            for (int i = first; i < last; i += CONVERSION_CHUNK) {
+                int n = Math.min(CONVERSION_CHUNK, last - i);
+                in.get(inChunk, 0, n * bytesPerPixel);
+                kernel.convert(inChunk, outChunk, n);
+                out.put(outChunk, 0, n);
+            }
+        });
+        src.position(start + pixels * bytesPerPixel);
         argb.rewind();
     }
 
+    private static void convertFloats(FloatBuffer src, ByteBuffer argb, int pixels, FloatKernel kernel) {
+        forEachBand(pixels, (first, last) -> {
+            FloatBuffer in = src.duplicate();
+            in.position(first);
+            IntBuffer out = intView(argb, first);
+            float[] inChunk = floatChunk.get();
+            int[] outChunk = intChunk.get();
+            for (int i = first; i < last; i += CONVERSION_CHUNK) {
+                int n = Math.min(CONVERSION_CHUNK, last - i);
+                in.get(inChunk, 0, n);
+                kernel.convert(inChunk, outChunk, n);
+                out.put(outChunk, 0, n);
+            }
+        });
+        argb.rewind();
+    }
+
+    private static IntBuffer intView(ByteBuffer argb, int firstPixel) {
+        ByteBuffer out = argb.duplicate();
+        out.order(ByteOrder.BIG_ENDIAN);
+        IntBuffer ints = out.asIntBuffer();
+        ints.position(firstPixel);
+        return ints;
+    }
+
+    interface Band {
+
+        void run(int first, int last);
+    }
+
+    private static void forEachBand(int pixels, Band band) {
+        if (!parallelConversion || pixels < PARALLEL_MIN_PIXELS) {
+            band.run(0, pixels);
+            return;
+        }
+        int bands = ForkJoinPool.getCommonPoolParallelism() * 2;
+        int size = (pixels / bands + CONVERSION_CHUNK - 1) / CONVERSION_CHUNK * CONVERSION_CHUNK;
+        IntStream.range(0, (pixels + size - 1) / size).parallel()
+                .forEach(b -> band.run(b * size, Math.min(pixels, (b + 1) * size)));
+    }
+
+    public static void byteBufferDepthK1MMtoARGB(ByteBuffer gray, ByteBuffer argb) {
+        byteBufferShorttoARGB(gray, argb);
+    }
+
     public static void createAnaglyph(PImage imgL, PImage imgR, PImage imgOut) {
         imgL.loadPixels();
         imgR.loadPixels();
@@ -110,44 +208,41 @@ public class ImageUtils {
     }
 
     public static void byteBufferZ16toARGB(ByteBuffer gray, ByteBuffer argb) {
-        byte[] tmpArr = new byte[2];
         gray.rewind();
-        for (int i = 0; i < argb.capacity(); i += 4) {
-            gray.get(tmpArr);
-            argb.put(tmpArr[0]);
-            argb.put(tmpArr[1]);
-            argb.put((byte) 128);
-            argb.put((byte) 255);
-        }
-        argb.rewind();
+        convertBytes(gray, 2, argb, argb.capacity() / 4, (in, out, n) -> {
+            for (int i = 0, k = 0; i < n; i++, k += 2) {
+                out[i] = (in[k] & 255) << 24 | (in[k + 1] & 255) << 16 | 128 << 8 | 255;
+            }
+        });
     }
 
     // For OpenNI -- test
     public static void byteBufferShorttoARGB(ByteBuffer gray, ByteBuffer argb) {
-        byte[] depthRaw = new byte[2];
-        for (int i = 0; i < argb.capacity(); i += 4) {
-            gray.get(depthRaw);
-            int d = (depthRaw[0] & 255) << 8 | (depthRaw[1] & 255);
-            // min depth: 400
-            byte dValue = (byte) ((d - 300.0F) / 3000.0F * 255.0F);
-            argb.put(dValue);
-            argb.put(dValue);
-            argb.put(dValue);
-            argb.put((byte) 255);
-        }
-        argb.rewind();
+        byteBufferDepthToARGB(gray, argb, DepthColorMap.DEFAULT);
+    }
+
+    /**
+     * Convert 16 bits depth to colors, using the lookup table of the map.
+     *
+     * @param depth depth values, most significant byte first.
+     * @param argb
+     * @param colorMap
+     */
+    public static void byteBufferDepthToARGB(ByteBuffer depth, ByteBuffer argb, DepthColorMap colorMap) {
+        int[] table = colorMap.getTable();
+        convertBytes(depth, 2, argb, argb.capacity() / 4, (in, out, n) -> {
+            for (int i = 0, k = 0; i < n; i++, k += 2) {
+                out[i] = table[(in[k] & 255) << 8 | (in[k + 1] & 255)];
+            }
+        });
     }
 
     public static void byteBufferGRAYtoARGB(ByteBuffer gray, ByteBuffer argb) {
-        byte[] tmpArr = new byte[1];
-        for (int i = 0; i < gray.capacity(); i++) {
-            gray.get(tmpArr);
-            argb.put(tmpArr[0]);
-            argb.put(tmpArr[0]);
-            argb.put(tmpArr[0]);
-            argb.put((byte) 255);
-        }
-        argb.rewind();
+        convertBytes(gray, 1, argb, gray.capacity(), (in, out, n) -> {
+            for (int i = 0; i < n; i++) {
+                out[i] = (in[i] & 255) * 0x01010100 | 255;
+            }
+        });
     }
 
     public static void remapImageIpl(opencv_core.CvMat homography, opencv_core.IplImage imgIn, opencv_core.IplImage imgOut) {
@@ -158,63 +253,49 @@ public class ImageUtils {
         //                getFillColor());
     }
 
+    /**
+     * Image of the size of Pout, with the depth and channels of imgIn. It is
+     * not from the ImagePool: the garbage collector frees it. Use
+     * ImagePool.getDefault().acquire() for images released explicitly.
+     */
     public static opencv_core.IplImage createImageFrom(opencv_core.IplImage imgIn, PImage Pout) {
-        // TODO: avoid this creation !!
-        opencv_core.CvSize outSize = new opencv_core.CvSize();
-        outSize.width(Pout.width);
-        outSize.height(Pout.height);
-        opencv_core.IplImage imgOut = cvCreateImage(outSize, // size
-                imgIn.depth(), // depth
-                imgIn.nChannels());
-        //        imgIn.w
-        return imgOut;
+        return opencv_core.IplImage.create(Pout.width, Pout.height, imgIn.depth(), imgIn.nChannels());
     }
 
+    /**
+     * Image like imgIn, freed by the garbage collector.
+     */
     public static opencv_core.IplImage createImageFrom(opencv_core.IplImage imgIn) {
-        // TODO: avoid this creation !!
-        opencv_core.CvSize outSize = new opencv_core.CvSize();
-        outSize.width(imgIn.width());
-        outSize.height(imgIn.height());
-        opencv_core.IplImage imgOut = cvCreateImage(outSize, // size
-                imgIn.depth(), // depth
-                imgIn.nChannels());
-        //        imgIn.w
-        return imgOut;
+        return opencv_core.IplImage.create(imgIn.width(), imgIn.height(), imgIn.depth(), imgIn.nChannels());
     }
 
+    /**
+     * 8 bits image for a PImage, freed by the garbage collector.
+     */
     public static opencv_core.IplImage createImageFrom(PImage in) {
-        // TODO: avoid this creation !!
-        opencv_core.CvSize outSize = new opencv_core.CvSize();
-        outSize.width(in.width);
-        outSize.height(in.height);
 //        System.out.println("inputImage to create an IPL:" + in.width + " " + in.height + " " + in.format);
-        opencv_core.IplImage imgOut = null;
+        int channels = 0;
         if (in.format == PConstants.RGB) {
-            imgOut = cvCreateImage(outSize, opencv_core.IPL_DEPTH_8U, // depth
-                    3);
+            channels = 3;
         }
         if (in.format == PConstants.ALPHA || in.format == PConstants.GRAY) {
-            imgOut = cvCreateImage(outSize, opencv_core.IPL_DEPTH_8U, // depth
-                    1);
+            channels = 1;
         }
         if (in.format == PConstants.ARGB) {
-            imgOut = cvCreateImage(outSize, opencv_core.IPL_DEPTH_8U, // depth
-                    4);
+            channels = 4;
         }
-        //        imgIn.w
-        return imgOut;
+        if (channels == 0) {
+            return null;
+        }
+        return opencv_core.IplImage.create(in.width, in.height, opencv_core.IPL_DEPTH_8U, channels);
     }
 
     public static void byteBufferBRGtoARGB(ByteBuffer bgr, ByteBuffer argb) {
-        byte[] tmpArr = new byte[3];
-        for (int i = 0; i < bgr.capacity(); i += 3) {
-            bgr.get(tmpArr);
-            argb.put(tmpArr[2]);
-            argb.put(tmpArr[1]);
-            argb.put(tmpArr[0]);
-            argb.put((byte) 255);
-        }
-        argb.rewind();
+        convertBytes(bgr, 3, argb, bgr.capacity() / 3, (in, out, n) -> {
+            for (int i = 0, k = 0; i < n; i++, k += 3) {
+                out[i] = (in[k + 2] & 255) << 24 | (in[k + 1] & 255) << 16 | (in[k] & 255) << 8 | 255;
+            }
+        });
     }
 
     /**
@@ -241,28 +322,20 @@ public class ImageUtils {
         ret.updatePixels();
     }
 
+    /**
+     * Image of the given size, with the depth and channels of imgIn, freed by
+     * the garbage collector.
+     */
     public static opencv_core.IplImage createNewSizeImageFrom(opencv_core.IplImage imgIn, int width, int height) {
-        // TODO: avoid this creation !!
-        opencv_core.CvSize outSize = new opencv_core.CvSize();
-        outSize.width(width);
-        outSize.height(height);
-        opencv_core.IplImage imgOut = cvCreateImage(outSize, // size
-                imgIn.depth(), // depth
-                imgIn.nChannels());
-        //        imgIn.w
-        return imgOut;
+        return opencv_core.IplImage.create(width, height, imgIn.depth(), imgIn.nChannels());
     }
 
     public static void byteBufferRGBtoARGB(ByteBuffer bgr, ByteBuffer argb) {
-        byte[] tmpArr = new byte[3];
-        for (int i = 0; i < bgr.capacity(); i += 3) {
-            bgr.get(tmpArr);
-            argb.put(tmpArr[0]);
-            argb.put(tmpArr[1]);
-            argb.put(tmpArr[2]);
-            argb.put((byte) 255);
-        }
-        argb.rewind();
+        convertBytes(bgr, 3, argb, bgr.capacity() / 3, (in, out, n) -> {
+            for (int i = 0, k = 0; i < n; i++, k += 3) {
+                out[i] = (in[k] & 255) << 24 | (in[k + 1] & 255) << 16 | (in[k + 2] & 255) << 8 | 255;
+            }
+        });
     }
 
     @Deprecated
@@ -294,9 +367,11 @@ public class ImageUtils {
     }
 
     public static void remapImage(opencv_core.CvMat homography, opencv_core.IplImage imgIn, opencv_core.IplImage imgTmp, PImage Pout, boolean isRgb) {
+        long start = System.nanoTime();
         opencv_imgproc.cvWarpPerspective(imgIn, imgTmp, homography);
         // opencv_imgproc.CV_INTER_LINEAR ); //                opencv_imgproc.CV_WARP_FILL_OUTLIERS);
         //                getFillColor());
+        remapTime.record(System.nanoTime() - start);
         IplImageToPImage(imgTmp, isRgb, Pout);
     }
 
@@ -325,19 +400,13 @@ public class ImageUtils {
     }
 
     public static void byteBufferDepthK2toARGB(ByteBuffer gray, ByteBuffer argb) {
-        FloatBuffer floatGray = gray.asFloatBuffer();
-        float[] tmpArr = new float[1];
-        for (int i = 0; i < argb.capacity(); i += 4) {
-            floatGray.get(tmpArr);
-            // 8 meters
-            byte v = (byte) (tmpArr[0] / 8000 * 255);
-            //            byte v = (byte) (tmpArr[0] << 8 | tmpArr[1]);
-            argb.put((byte) (v));
-            argb.put((byte) (v));
-            argb.put((byte) (v));
-            argb.put((byte) 255);
-        }
-        argb.rewind();
+        convertFloats(gray.asFloatBuffer(), argb, argb.capacity() / 4, (in, out, n) -> {
+            for (int i = 0; i < n; i++) {
+                // 8 meters
+                int v = ((byte) (in[i] / 8000 * 255)) & 255;
+                out[i] = v << 24 | v << 16 | v << 8 | 255;
+            }
+        });
     }
 
     // TODO: clean all this !
@@ -375,6 +444,7 @@ public class ImageUtils {
         //        }
         assert (img.width() == ret.width);
         assert (img.height() == ret.height);
+        long start = System.nanoTime();
         ret.loadPixels();
         ByteBuffer buff = img.getByteBuffer();
 
@@ -413,21 +483,16 @@ public class ImageUtils {
             }
         }
         ret.updatePixels();
+        conversionTime.record(System.nanoTime() - start);
     }
 
     public static void byteBufferGRAY32toARGB(ByteBuffer gray, ByteBuffer argb) {
-        FloatBuffer floatGray = gray.asFloatBuffer();
-        float[] tmpArr = new float[1];
-        for (int i = 0; i < argb.capacity(); i += 4) {
-            floatGray.get(tmpArr);
-            byte v = (byte) (tmpArr[0] / 65535.0 * 255);
-            //            byte v = (byte) (tmpArr[0] << 8 | tmpArr[1]);
-            argb.put((byte) (v));
-            argb.put((byte) (v));
-            argb.put((byte) (v));
-            argb.put((byte) 255);
-        }
-        argb.rewind();
+        convertFloats(gray.asFloatBuffer(), argb, argb.capacity() / 4, (in, out, n) -> {
+            for (int i = 0; i < n; i++) {
+                int v = ((byte) (in[i] / 65535.0 * 255)) & 255;
+                out[i] = v << 24 | v << 16 | v << 8 | 255;
+            }
+        });
     }
 
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the performance metrics: counters, latency histograms and
+ * sources.
+ *
+ * Counters and histograms are updated without locks, by the code that
+ * measures. Sources (cameras, boards, emitters...) are read only when a
+ * snapshot is taken: they cost nothing between two reports. The snapshots
+ * are exported as a JMX MBean (registerMBean) and in a Redis hash
+ * (MetricsReporter).
+ *
+ * Names are dot separated, for instance "camera.color.fps". The default
+ * registry reports the default ImagePool ("imagepool"), the started
+ * CameraNectars ("camera." + description, with their tracked boards) and the
+ * VideoEmitters ("emitter." + key) until they are closed. Other cameras and
+ * the RedisClientPools are opt-in: addSource("camera", camera) reports a
+ * camera.
+ *
+ * @author Jeremy Laviole
+ */
+public class Metrics {
+
+    public static final String JMX_DOMAIN = "tech.lity.rea.nectar";
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    static {
+        DEFAULT.addSource("imagepool", ImagePool.getDefault());
+    }
+
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Object that gives its metrics when a snapshot is taken.
+     */
+    public interface Source {
+
+        /**
+         * @param prefix to put in front of the names, with a dot.
+         * @param out name to value.
+         */
+        public void reportMetrics(String prefix, Map<String, Number> out);
+
+        /**
+         * Empty the histograms of the source, called by Metrics.reset().
+         * The totals (frames, poses...) are kept.
+         */
+        public default void resetMetrics() {
+        }
+    }
+
+    /**
+     * Counter updated by many threads.
+     */
+    public static class Counter {
+
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        public void reset() {
+            count.reset();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Source> sources = new ConcurrentHashMap<>();
+    private ObjectName mbeanName = null;
+
+    /**
+     * @param name
+     * @return the counter, created at the first call.
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * @param name
+     * @return the histogram, created at the first call.
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    /**
+     * @param prefix names of the metrics of the source.
+     * @param source replaces the source with the same prefix.
+     */
+    public void addSource(String prefix, Source source) {
+        sources.put(prefix, source);
+    }
+
+    public void removeSource(String prefix) {
+        sources.remove(prefix);
+    }
+
+    /**
+     * @return all the metrics, sorted by name.
+     */
+    public Map<String, Number> snapshot() {
+        TreeMap<String, Number> out = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            out.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            putHistogram(out, e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, Source> e : sources.entrySet()) {
+            try {
+                e.getValue().reportMetrics(e.getKey(), out);
+            } catch (Exception ex) {
+                System.err.println("Metrics: cannot read " + e.getKey() + ": " + ex);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Summary of a histogram: count, mean, p50, p90, p99 and max, in
+     * milliseconds.
+     *
+     * @param out
+     * @param name
+     * @param histogram
+     */
+    public static void putHistogram(Map<String, Number> out, String name, LatencyHistogram histogram) {
+        out.put(name + ".count", histogram.getCount());
+        out.put(name + ".mean_ms", histogram.getMeanMillis());
+        out.put(name + ".p50_ms", histogram.getPercentileMillis(50));
+        out.put(name + ".p90_ms", histogram.getPercentileMillis(90));
+        out.put(name + ".p99_ms", histogram.getPercentileMillis(99));
+        out.put(name + ".max_ms", histogram.getMaxNanos() / 1e6f);
+    }
+
+    /**
+     * Empty the counters and histograms of the registry, and the histograms
+     * of the sources (see Source.resetMetrics()).
+     */
+    public void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (Map.Entry<String, Source> e : sources.entrySet()) {
+            try {
+                e.getValue().resetMetrics();
+            } catch (Exception ex) {
+                System.err.println("Metrics: cannot reset " + e.getKey() + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Export the metrics in the platform MBean server, as
+     * tech.lity.rea.nectar:type=Metrics,name=name.
+     *
+     * @param name
+     * @return true if it is registered.
+     */
+    public synchronized boolean registerMBean(String name) {
+        unregisterMBean();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+            server.registerMBean(new MetricsJmx(this), objectName);
+            mbeanName = objectName;
+            return true;
+        } catch (Exception e) {
+            System.err.println("Metrics: cannot register the MBean " + name + ": " + e);
+            return false;
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (Exception e) {
+            System.err.println("Metrics: cannot unregister the MBean: " + e);
+        }
+        mbeanName = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Metrics");
+        for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+            sb.append('\n').append(e.getKey()).append(' ').append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
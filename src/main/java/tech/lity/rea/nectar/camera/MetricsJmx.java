@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * JMX view of a Metrics registry: one read-only attribute per metric. The
+ * attributes are the ones of the snapshot taken when the MBean info is
+ * asked.
+ *
+ * A snapshot reads all the sources: it is shared by the requests of the
+ * next SNAPSHOT_MAX_AGE_MILLIS, a console reading each attribute on its own
+ * takes one snapshot per refresh instead of one per attribute.
+ *
+ * @author Jeremy Laviole
+ */
+class MetricsJmx implements DynamicMBean {
+
+    static final long SNAPSHOT_MAX_AGE_MILLIS = 500;
+
+    private final Metrics metrics;
+    private Map<String, Number> snapshot = null;
+    private long snapshotTime = 0;
+
+    MetricsJmx(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private synchronized Map<String, Number> snapshot() {
+        long now = System.currentTimeMillis();
+        if (snapshot == null || now - snapshotTime > SNAPSHOT_MAX_AGE_MILLIS) {
+            snapshot = metrics.snapshot();
+            snapshotTime = now;
+        }
+        return snapshot;
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Number value = snapshot().get(name);
+        if (value == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Number> snapshot = snapshot();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Number value = snapshot.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        if ("reset".equals(actionName)) {
+            metrics.reset();
+            synchronized (this) {
+                snapshot = null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> snapshot = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> e : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                    e.getKey(), true, false, false);
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset",
+                "Empty the counters and histograms", null, "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(Metrics.class.getName(), "Natar performance metrics",
+                attributes, null, new MBeanOperationInfo[]{reset}, null);
+    }
+}
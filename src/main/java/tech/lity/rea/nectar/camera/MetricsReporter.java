@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.HashMap;
+import java.util.Map;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Thread writing the snapshots of a Metrics registry in a Redis hash,
+ * periodically. The hash is replaced at each report, it expires when the
+ * reports stop.
+ *
+ * @author Jeremy Laviole
+ */
+public class MetricsReporter extends RedisClientImpl {
+
+    public static final long DEFAULT_PERIOD_MILLIS = 5000;
+
+    private final Metrics metrics;
+    private final String key;
+    private long period = DEFAULT_PERIOD_MILLIS;
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    /**
+     * @param client Redis connection parameters.
+     * @param metrics registry to report.
+     * @param key of the hash, "nectar:metrics:host" for instance.
+     */
+    public MetricsReporter(RedisClient client, Metrics metrics, String key) {
+        super(client);
+        this.metrics = metrics;
+        this.key = key;
+    }
+
+    public void setPeriodMillis(long period) {
+        this.period = Math.max(100, period);
+    }
+
+    public long getPeriodMillis() {
+        return period;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "Metrics " + key);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void run() {
+        Jedis connection = null;
+        while (running) {
+            try {
+                if (connection == null) {
+                    connection = createConnection();
+                }
+                report(connection);
+            } catch (Exception e) {
+                System.err.println("MetricsReporter: cannot write " + key + ": " + e);
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+            }
+            try {
+                Thread.sleep(period);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Write one snapshot.
+     *
+     * @param connection
+     */
+    public void report(Jedis connection) {
+        Map<String, Number> snapshot = metrics.snapshot();
+        Map<String, String> hash = new HashMap<>(snapshot.size() * 2);
+        for (Map.Entry<String, Number> e : snapshot.entrySet()) {
+            hash.put(e.getKey(), e.getValue().toString());
+        }
+        hash.put("timestamp", Long.toString(System.currentTimeMillis()));
+        Pipeline pipeline = connection.pipelined();
+        pipeline.del(key);
+        pipeline.hmset(key, hash);
+        // Three periods without report: the values are obsolete.
+        pipeline.expire(key, (int) Math.max(1, 3 * period / 1000));
+        pipeline.sync();
+    }
+}
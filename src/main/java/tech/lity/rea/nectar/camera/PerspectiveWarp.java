@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import org.bytedeco.javacpp.opencv_core.CvMat;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import org.bytedeco.javacv.ProjectiveDevice;
+import processing.core.PImage;
+
+/**
+ * Perspective warp and conversion to ARGB in one pass.
+ *
+ * Each pixel of the destination is projected in the source image with the
+ * inverse of the homography, sampled and written in the pixels of the PImage.
+ * There is no intermediate IplImage. Large destinations are computed by bands
+ * of rows in parallel.
+ *
+ * Same conventions as cvWarpPerspective: pixel (x, y) of the destination
+ * comes from H^-1 (x, y, 1), pixels out of the source are black.
+ *
+ * With a lens distortion set, the source is the raw (distorted) camera image:
+ * the positions given by the homography are distorted before sampling. They
+ * are computed once in a sampling map, used again until the homography, the
+ * distortion or the image sizes change.
+ *
+ * @author Jeremy Laviole
+ */
+public class PerspectiveWarp {
+
+    public static final int PARALLEL_MIN_PIXELS = 320 * 240;
+
+    private static final int BLACK = 0xFF000000;
+
+    // Destination to source, row major.
+    private final double[] inverse = new double[9];
+    private boolean hasHomography = false;
+    private boolean bilinear = true;
+    private boolean parallel = true;
+
+    private Distortion distortion = null;
+    // Sampling map: source pixel y << 16 | x (-1 outside), weights fy << 16 | fx.
+    private int[] mapCoords = null, mapWeights = null;
+    private int mapWidth, mapHeight, mapSourceWidth, mapSourceHeight;
+    private boolean mapValid = false;
+
+    public PerspectiveWarp() {
+    }
+
+    /**
+     * @param homography source to destination, as given to
+     * cvWarpPerspective.
+     * @return false if the homography cannot be inverted.
+     */
+    public boolean setHomography(CvMat homography) {
+        double[] h = new double[9];
+        for (int i = 0; i < 9; i++) {
+            h[i] = homography.get(i);
+        }
+        return setHomography(h);
+    }
+
+    /**
+     * @param h source to destination, 3x3 row major.
+     * @return false if the homography cannot be inverted.
+     */
+    public boolean setHomography(double[] h) {
+        double c00 = h[4] * h[8] - h[5] * h[7];
+        double c01 = h[5] * h[6] - h[3] * h[8];
+        double c02 = h[3] * h[7] - h[4] * h[6];
+        double det = h[0] * c00 + h[1] * c01 + h[2] * c02;
+        if (det == 0 || Double.isNaN(det)) {
+            hasHomography = false;
+            return false;
+        }
+        double inv = 1.0 / det;
+        inverse[0] = c00 * inv;
+        inverse[1] = (h[2] * h[7] - h[1] * h[8]) * inv;
+        inverse[2] = (h[1] * h[5] - h[2] * h[4]) * inv;
+        inverse[3] = c01 * inv;
+        inverse[4] = (h[0] * h[8] - h[2] * h[6]) * inv;
+        inverse[5] = (h[2] * h[3] - h[0] * h[5]) * inv;
+        inverse[6] = c02 * inv;
+        inverse[7] = (h[1] * h[6] - h[0] * h[7]) * inv;
+        inverse[8] = (h[0] * h[4] - h[1] * h[3]) * inv;
+        hasHomography = true;
+        mapValid = false;
+        return true;
+    }
+
+    public boolean hasHomography() {
+        return hasHomography;
+    }
+
+    /**
+     * @param bilinear interpolate the samples (default), or take the nearest
+     * pixel.
+     */
+    public void setBilinear(boolean bilinear) {
+        this.bilinear = bilinear;
+    }
+
+    public boolean isBilinear() {
+        return bilinear;
+    }
+
+    /**
+     * Sample a raw camera image: apply the lens distortion of the device to
+     * the positions given by the homography.
+     *
+     * @param device calibration, null to sample an undistorted image.
+     */
+    public void setDistortion(ProjectiveDevice device) {
+        this.distortion = device == null ? null : Distortion.create(device);
+        mapValid = false;
+    }
+
+    public boolean hasDistortion() {
+        return distortion != null;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param img
+     * @return true for 8 bits images with 1, 3 or 4 channels.
+     */
+    public static boolean supports(IplImage img) {
+        int channels = img.nChannels();
+        return img.depth() == IPL_DEPTH_8U && (channels == 1 || channels == 3 || channels == 4);
+    }
+
+    /**
+     * Warp an image into a PImage. Same channel order as
+     * ImageUtils.IplImageToPImage: the first three channels are read as RGB
+     * or BGR, gray images are copied in the three colors.
+     *
+     * @param src 8 bits image, see supports().
+     * @param isRgb
+     * @param dst
+     */
+    public void warp(IplImage src, boolean isRgb, PImage dst) {
+        if (!hasHomography) {
+            System.err.println("PerspectiveWarp: no homography set.");
+            return;
+        }
+        dst.loadPixels();
+        Source source = new Source(src, isRgb);
+        int[] pixels = dst.pixels;
+        int width = dst.width;
+
+        if (distortion == null) {
+            forEachBand(width, dst.height, (start, end)
+                    -> warpRows(source, pixels, width, start, end));
+        } else {
+            checkMap(width, dst.height, source.width, source.height);
+            forEachBand(width, dst.height, (start, end)
+                    -> mapRows(source, pixels, start * width, end * width));
+        }
+        dst.updatePixels();
+    }
+
+    private interface Band {
+
+        void rows(int start, int end);
+    }
+
+    private void forEachBand(int width, int height, Band band) {
+        if (!parallel || width * height < PARALLEL_MIN_PIXELS) {
+            band.rows(0, height);
+            return;
+        }
+        int bands = ForkJoinPool.getCommonPoolParallelism() * 2;
+        int rowsPerBand = (height + bands - 1) / bands;
+        IntStream.range(0, bands).parallel().forEach(b -> {
+            int start = b * rowsPerBand;
+            band.rows(start, Math.min(height, start + rowsPerBand));
+        });
+    }
+
+    private void warpRows(Source src, int[] pixels, int width, int startRow, int endRow) {
+        double[] m = inverse;
+        boolean bilinear = this.bilinear;
+        for (int y = startRow; y < endRow; y++) {
+            // Homogeneous source position of (0, y), then one step per pixel.
+            double sx = m[1] * y + m[2];
+            double sy = m[4] * y + m[5];
+            double sw = m[7] * y + m[8];
+            int k = y * width;
+            for (int x = 0; x < width; x++, k++) {
+                double w = 1.0 / sw;
+                float fx = (float) (sx * w);
+                float fy = (float) (sy * w);
+                pixels[k] = bilinear ? src.bilinear(fx, fy) : src.nearest(fx, fy);
+                sx += m[0];
+                sy += m[3];
+                sw += m[6];
+            }
+        }
+    }
+
+    private void mapRows(Source src, int[] pixels, int start, int end) {
+        boolean bilinear = this.bilinear;
+        for (int k = start; k < end; k++) {
+            pixels[k] = src.mapped(mapCoords[k], mapWeights[k], bilinear);
+        }
+    }
+
+    private void checkMap(int width, int height, int sourceWidth, int sourceHeight) {
+        if (mapValid && width == mapWidth && height == mapHeight
+                && sourceWidth == mapSourceWidth && sourceHeight == mapSourceHeight) {
+            return;
+        }
+        if (mapCoords == null || mapCoords.length != width * height) {
+            mapCoords = new int[width * height];
+            mapWeights = new int[width * height];
+        }
+        mapWidth = width;
+        mapHeight = height;
+        mapSourceWidth = sourceWidth;
+        mapSourceHeight = sourceHeight;
+        Distortion d = distortion;
+        double[] m = inverse;
+        forEachBand(width, height, (startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                double sx = m[1] * y + m[2];
+                double sy = m[4] * y + m[5];
+                double sw = m[7] * y + m[8];
+                int k = y * width;
+                for (int x = 0; x < width; x++, k++) {
+                    d.distort(sx / sw, sy / sw, k, sourceWidth, sourceHeight, mapCoords, mapWeights);
+                    sx += m[0];
+                    sy += m[3];
+                    sw += m[6];
+                }
+            }
+        });
+        mapValid = true;
+    }
+
+    /**
+     * Lens distortion of OpenCV: k1, k2, p1, p2, k3 [, k4, k5, k6].
+     */
+    private static final class Distortion {
+
+        private final double fx, fy, cx, cy;
+        private final double k1, k2, p1, p2, k3, k4, k5, k6;
+
+        private Distortion(double[] k, double[] c) {
+            fx = k[0];
+            cx = k[2];
+            fy = k[4];
+            cy = k[5];
+            double[] d = new double[8];
+            System.arraycopy(c, 0, d, 0, Math.min(8, c.length));
+            k1 = d[0];
+            k2 = d[1];
+            p1 = d[2];
+            p2 = d[3];
+            k3 = d[4];
+            k4 = d[5];
+            k5 = d[6];
+            k6 = d[7];
+        }
+
+        static Distortion create(ProjectiveDevice device) {
+            CvMat cameraMatrix = device.cameraMatrix;
+            CvMat coeffs = device.distortionCoeffs;
+            if (cameraMatrix == null) {
+                System.err.println("PerspectiveWarp: the device has no camera matrix.");
+                return null;
+            }
+            double[] k = new double[9];
+            for (int i = 0; i < 9; i++) {
+                k[i] = cameraMatrix.get(i);
+            }
+            double[] c = new double[coeffs == null ? 0 : coeffs.rows() * coeffs.cols()];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = coeffs.get(i);
+            }
+            return new Distortion(k, c);
+        }
+
+        /**
+         * Distort the pixel (u, v) and store it in the map, at index i.
+         */
+        void distort(double u, double v, int i, int width, int height, int[] coords, int[] weights) {
+            double x = (u - cx) / fx;
+            double y = (v - cy) / fy;
+            double r2 = x * x + y * y;
+            double radial = (1 + r2 * (k1 + r2 * (k2 + r2 * k3)))
+                    / (1 + r2 * (k4 + r2 * (k5 + r2 * k6)));
+            double xd = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+            double yd = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+            double sx = fx * xd + cx;
+            double sy = fy * yd + cy;
+            if (!(sx >= 0 && sy >= 0 && sx <= width - 1 && sy <= height - 1) || width < 2 || height < 2) {
+                coords[i] = -1;
+                return;
+            }
+            int x0 = Math.min((int) sx, width - 2);
+            int y0 = Math.min((int) sy, height - 2);
+            coords[i] = y0 << 16 | x0;
+            weights[i] = (int) Math.round((sy - y0) * 256) << 16 | (int) Math.round((sx - x0) * 256);
+        }
+    }
+
+    /**
+     * Read access to the pixels of a source image. Absolute reads only, it
+     * is shared by the bands.
+     */
+    private static final class Source {
+
+        private final ByteBuffer data;
+        private final int width, height, step, channels;
+        // Offsets of red and blue in a pixel.
+        private final int red, blue;
+
+        Source(IplImage img, boolean isRgb) {
+            this.data = img.getByteBuffer();
+            this.width = img.width();
+            this.height = img.height();
+            this.step = img.widthStep();
+            this.channels = img.nChannels();
+            if (channels == 1) {
+                red = 0;
+                blue = 0;
+            } else {
+                red = isRgb ? 0 : 2;
+                blue = isRgb ? 2 : 0;
+            }
+        }
+
+        int nearest(float fx, float fy) {
+            int x = (int) (fx + 0.5f);
+            int y = (int) (fy + 0.5f);
+            if (!(fx > -0.5f && fy > -0.5f) || x >= width || y >= height) {
+                return BLACK;
+            }
+            int p = y * step + x * channels;
+            if (channels == 1) {
+                return BLACK | (data.get(p) & 255) * 0x010101;
+            }
+            return BLACK | (data.get(p + red) & 255) << 16
+                    | (data.get(p + 1) & 255) << 8
+                    | (data.get(p + blue) & 255);
+        }
+
+        int bilinear(float fx, float fy) {
+            if (!(fx >= 0 && fy >= 0 && fx <= width - 1 && fy <= height - 1)) {
+                return BLACK;
+            }
+            int x0 = Math.min((int) fx, width - 2);
+            int y0 = Math.min((int) fy, height - 2);
+            if (x0 < 0 || y0 < 0) {
+                // One pixel wide or high source.
+                return nearest(fx, fy);
+            }
+            // Weights, 0 to 256.
+            int wx = (int) ((fx - x0) * 256 + 0.5f);
+            int wy = (int) ((fy - y0) * 256 + 0.5f);
+            int p = y0 * step + x0 * channels;
+            if (channels == 1) {
+                return BLACK | sample(p, wx, wy) * 0x010101;
+            }
+            return BLACK | sample(p + red, wx, wy) << 16
+                    | sample(p + 1, wx, wy) << 8
+                    | sample(p + blue, wx, wy);
+        }
+
+        int mapped(int coord, int weight, boolean bilinear) {
+            if (coord < 0) {
+                return BLACK;
+            }
+            int wx = weight & 0xFFFF;
+            int wy = weight >>> 16;
+            int p = (coord >>> 16) * step + (coord & 0xFFFF) * channels;
+            if (!bilinear) {
+                p += (wy >= 128 ? step : 0) + (wx >= 128 ? channels : 0);
+                wx = 0;
+                wy = 0;
+            }
+            if (channels == 1) {
+                return BLACK | sample(p, wx, wy) * 0x010101;
+            }
+            return BLACK | sample(p + red, wx, wy) << 16
+                    | sample(p + 1, wx, wy) << 8
+                    | sample(p + blue, wx, wy);
+        }
+
+        private int sample(int p, int wx, int wy) {
+            if (wx == 0 && wy == 0) {
+                return data.get(p) & 255;
+            }
+            int a00 = data.get(p) & 255;
+            int a01 = data.get(p + channels) & 255;
+            int a10 = data.get(p + step) & 255;
+            int a11 = data.get(p + step + channels) & 255;
+            int top = (a00 << 8) + (a01 - a00) * wx;
+            int bottom = (a10 << 8) + (a11 - a10) * wx;
+            return ((top << 8) + (bottom - top) * wy + (1 << 15)) >> 16;
+        }
+    }
+}
@@ -18,14 +18,20 @@ public class RedisClientImpl implements RedisClient {
     public static final String NO_AUTH = "";
     protected String redisHost = REDIS_HOST;
     protected int redisPort = REDIS_PORT;
-    private String redisAuth = NO_AUTH;
+    protected String redisAuth = NO_AUTH;
 
-    private static final RedisClientImpl mainClient = new RedisClientImpl();
+    // Shared by all the default callers: connections are pooled.
+    private static final RedisClientImpl mainClient = new RedisClientPool();
 
     public static RedisClientImpl getMainConnection() {
         return mainClient;
     }
 
+    /**
+     * Get a connection from the main client, close() it after use.
+     *
+     * @return
+     */
     public static Jedis createMainConnection() {
         return mainClient.createConnection();
     }
@@ -38,10 +44,14 @@ public class RedisClientImpl implements RedisClient {
         this.setRedisPort(client.getRedisPort());
     }
 
+    protected boolean hasAuth() {
+        return this.redisAuth != null && !this.redisAuth.equals(NO_AUTH);
+    }
+
     @Override
     public Jedis createConnection() {
         Jedis jedis = new Jedis(redisHost, redisPort);
-        if (this.redisAuth == null ? NO_AUTH != null : !this.redisAuth.equals(NO_AUTH)) {
+        if (hasAuth()) {
             jedis.auth(redisAuth);
         }
         return jedis;
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+
+/**
+ * RedisClient backed by a bounded pool of connections.
+ *
+ * createConnection() borrows a connection, calling close() on it gives it
+ * back to the pool. Idle connections are checked and evicted in background.
+ * When the pool is exhausted, a borrow fails after the maximum wait.
+ *
+ * Connections kept for the lifetime of a thread (subscriptions) must not
+ * come from the pool: use createDedicatedConnection().
+ *
+ * @author Jeremy Laviole
+ */
+public class RedisClientPool extends RedisClientImpl implements Metrics.Source {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    public static final int DEFAULT_MAX_IDLE = 8;
+    public static final long DEFAULT_IDLE_EVICTION_MS = 60000;
+    public static final long DEFAULT_EVICTION_RUN_MS = 30000;
+    public static final long DEFAULT_MAX_WAIT_MS = 2000;
+
+    private JedisPool pool = null;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxIdle = DEFAULT_MAX_IDLE;
+    private long idleEvictionTime = DEFAULT_IDLE_EVICTION_MS;
+    private long maxWait = DEFAULT_MAX_WAIT_MS;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    public RedisClientPool() {
+    }
+
+    public RedisClientPool(RedisClient client) {
+        super(client);
+    }
+
+    public RedisClientPool(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Borrow a connection from the pool. It must be given back with close().
+     *
+     * @return a connection, already authenticated.
+     */
+    @Override
+    public Jedis createConnection() {
+        Jedis jedis = getPool().getResource();
+        borrowCount.incrementAndGet();
+        return jedis;
+    }
+
+    /**
+     * Open a connection outside of the pool, for a subscription or another
+     * long lived use. close() really closes it.
+     *
+     * @return a new connection, already authenticated.
+     */
+    public Jedis createDedicatedConnection() {
+        return super.createConnection();
+    }
+
+    /**
+     * @param client
+     * @return a dedicated connection when the client is a pool, a connection
+     * of the client otherwise.
+     */
+    public static Jedis createDedicatedConnection(RedisClient client) {
+        if (client instanceof RedisClientPool) {
+            return ((RedisClientPool) client).createDedicatedConnection();
+        }
+        return client.createConnection();
+    }
+
+    private synchronized JedisPool getPool() {
+        if (pool == null || pool.isClosed()) {
+            pool = new JedisPool(createConfig(), redisHost, redisPort,
+                    Protocol.DEFAULT_TIMEOUT, hasAuth() ? redisAuth : null);
+        }
+        return pool;
+    }
+
+    private JedisPoolConfig createConfig() {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(maxConnections);
+        config.setMaxIdle(Math.min(maxIdle, maxConnections));
+        config.setMinIdle(0);
+        // Health checks: dead connections are not handed out.
+        config.setTestOnBorrow(true);
+        config.setTestWhileIdle(true);
+        // Idle eviction
+        config.setMinEvictableIdleTimeMillis(idleEvictionTime);
+        config.setTimeBetweenEvictionRunsMillis(DEFAULT_EVICTION_RUN_MS);
+        config.setNumTestsPerEvictionRun(-1);
+        config.setBlockWhenExhausted(true);
+        config.setMaxWaitMillis(maxWait);
+        return config;
+    }
+
+    /**
+     * Close all the connections, the pool is created again on next use.
+     */
+    public synchronized void close() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    // Connection parameters changes invalidate the current pool.
+    @Override
+    public void setRedisHost(String redisHost) {
+        super.setRedisHost(redisHost);
+        close();
+    }
+
+    @Override
+    public void setRedisPort(int redisPort) {
+        super.setRedisPort(redisPort);
+        close();
+    }
+
+    @Override
+    public void setRedisAuth(String redisAuth) {
+        super.setRedisAuth(redisAuth);
+        close();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        close();
+    }
+
+    /**
+     * @param maxWait longest wait for a connection when the pool is
+     * exhausted, in milliseconds. Then createConnection() throws.
+     */
+    public void setMaxWaitMillis(long maxWait) {
+        this.maxWait = maxWait;
+        close();
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWait;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+        close();
+    }
+
+    public void setIdleEvictionTime(long idleEvictionTime) {
+        this.idleEvictionTime = idleEvictionTime;
+        close();
+    }
+
+    // Pool metrics
+    /**
+     * @return number of connections currently borrowed.
+     */
+    public synchronized int getNumActive() {
+        return pool == null ? 0 : pool.getNumActive();
+    }
+
+    /**
+     * @return number of connections open and waiting in the pool.
+     */
+    public synchronized int getNumIdle() {
+        return pool == null ? 0 : pool.getNumIdle();
+    }
+
+    /**
+     * @return number of threads waiting for a connection.
+     */
+    public synchronized int getNumWaiters() {
+        return pool == null ? 0 : pool.getNumWaiters();
+    }
+
+    public synchronized long getMeanBorrowWaitTimeMillis() {
+        return pool == null ? 0 : pool.getMeanBorrowWaitTimeMillis();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    @Override
+    public void reportMetrics(String prefix, Map<String, Number> out) {
+        out.put(prefix + ".active", getNumActive());
+        out.put(prefix + ".idle", getNumIdle());
+        out.put(prefix + ".waiting", getNumWaiters());
+        out.put(prefix + ".borrowed", getBorrowCount());
+        out.put(prefix + ".borrow_wait_ms", getMeanBorrowWaitTimeMillis());
+    }
+
+    @Override
+    public String toString() {
+        return "RedisClientPool " + redisHost + ":" + redisPort
+                + " active " + getNumActive() + " idle " + getNumIdle()
+                + " waiting " + getNumWaiters() + " max " + maxConnections;
+    }
+}
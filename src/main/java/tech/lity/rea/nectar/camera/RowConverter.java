@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import tech.lity.rea.nectar.camera.Camera.PixelFormat;
+
+/**
+ * Conversion of rows of raw pixels to ARGB pixels (PImage).
+ *
+ * One converter per pixel format, get it once with forFormat(). Large frames
+ * can be converted in parallel, by bands of rows.
+ *
+ * @author Jeremy Laviole
+ */
+public abstract class RowConverter {
+
+    // Frames smaller than this are converted in the calling thread.
+    public static final int PARALLEL_MIN_PIXELS = 640 * 480;
+
+    private final int bytesPerPixel;
+
+    protected RowConverter(int bytesPerPixel) {
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * Convert one row.
+     *
+     * @param src raw pixels
+     * @param srcOffset start of the row in src
+     * @param dst ARGB pixels
+     * @param dstOffset start of the row in dst
+     * @param width number of pixels
+     */
+    public abstract void convertRow(byte[] src, int srcOffset, int[] dst, int dstOffset, int width);
+
+    /**
+     * Convert a frame.
+     *
+     * @param src raw pixels
+     * @param offset start of the first row in src
+     * @param stride size of a row in src, in bytes.
+     * @param dst ARGB pixels, rows of width pixels.
+     * @param width
+     * @param height
+     * @param parallel split the rows across the common fork-join pool, for
+     * large frames.
+     */
+    public void convert(byte[] src, int offset, int stride, int[] dst,
+            int width, int height, boolean parallel) {
+        if (!parallel || width * height < PARALLEL_MIN_PIXELS) {
+            convertRows(src, offset, stride, dst, width, 0, height);
+            return;
+        }
+        int bands = ForkJoinPool.getCommonPoolParallelism() * 2;
+        int rowsPerBand = (height + bands - 1) / bands;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int start = band * rowsPerBand;
+            convertRows(src, offset, stride, dst, width, start, Math.min(height, start + rowsPerBand));
+        });
+    }
+
+    private void convertRows(byte[] src, int offset, int stride, int[] dst,
+            int width, int startRow, int endRow) {
+        for (int y = startRow; y < endRow; y++) {
+            convertRow(src, offset + y * stride, dst, y * width, width);
+        }
+    }
+
+    /**
+     * @param format
+     * @return the converter of the format, null if the format is unknown.
+     */
+    public static RowConverter forFormat(PixelFormat format) {
+        if (format == null) {
+            return null;
+        }
+        switch (format) {
+            case BGR:
+                return BGR;
+            case RGB:
+                return RGB;
+            case ARGB:
+                return ARGB;
+            case RGBA:
+                return RGBA;
+            case GRAY:
+                return GRAY;
+            case DEPTH_KINECT_MM:
+            case REALSENSE_Z16:
+            case OPENNI_2_DEPTH:
+                return DEPTH;
+            default:
+                return null;
+        }
+    }
+
+    public static final RowConverter BGR = new RowConverter(3) {
+        @Override
+        public void convertRow(byte[] src, int k, int[] dst, int i, int width) {
+            int end = i + width;
+            for (; i < end; i++, k += 3) {
+                dst[i] = 0xFF000000 | (src[k + 2] & 255) << 16 | (src[k + 1] & 255) << 8 | (src[k] & 255);
+            }
+        }
+    };
+
+    public static final RowConverter RGB = new RowConverter(3) {
+        @Override
+        public void convertRow(byte[] src, int k, int[] dst, int i, int width) {
+            int end = i + width;
+            for (; i < end; i++, k += 3) {
+                dst[i] = 0xFF000000 | (src[k] & 255) << 16 | (src[k + 1] & 255) << 8 | (src[k + 2] & 255);
+            }
+        }
+    };
+
+    public static final RowConverter ARGB = new RowConverter(4) {
+        @Override
+        public void convertRow(byte[] src, int k, int[] dst, int i, int width) {
+            int end = i + width;
+            for (; i < end; i++, k += 4) {
+                dst[i] = (src[k] & 255) << 24 | (src[k + 1] & 255) << 16 | (src[k + 2] & 255) << 8 | (src[k + 3] & 255);
+            }
+        }
+    };
+
+    public static final RowConverter RGBA = new RowConverter(4) {
+        @Override
+        public void convertRow(byte[] src, int k, int[] dst, int i, int width) {
+            int end = i + width;
+            for (; i < end; i++, k += 4) {
+                dst[i] = (src[k + 3] & 255) << 24 | (src[k] & 255) << 16 | (src[k + 1] & 255) << 8 | (src[k + 2] & 255);
+            }
+        }
+    };
+
+    public static final RowConverter GRAY = new RowConverter(1) {
+        @Override
+        public void convertRow(byte[] src, int k, int[] dst, int i, int width) {
+            int end = i + width;
+            for (; i < end; i++, k++) {
+                dst[i] = 0xFF000000 | (src[k] & 255) * 0x010101;
+            }
+        }
+    };
+
+    // Same colors as ImageUtils.byteBufferShorttoARGB: the table of
+    // DepthColorMap.DEFAULT, read for each row to follow its changes.
+    public static final RowConverter DEPTH = new RowConverter(2) {
+        @Override
+        public void convertRow(byte[] src, int k, int[] dst, int i, int width) {
+            int[] table = DepthColorMap.DEFAULT.getTable();
+            int end = i + width;
+            for (; i < end; i++, k += 2) {
+                dst[i] = table[(src[k] & 255) << 8 | (src[k + 1] & 255)];
+            }
+        }
+    };
+}
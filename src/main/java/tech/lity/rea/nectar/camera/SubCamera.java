@@ -60,6 +60,38 @@ public class SubCamera extends Camera {
         isConnected = true;
     }
 
+    /**
+     * The frames of the sub cameras are also frames of the main camera.
+     */
+    @Override
+    protected void signalFrameArrival(Camera source) {
+        super.signalFrameArrival(source);
+        mainCamera.signalFrameArrival(source);
+    }
+
+    /**
+     * The grabber thread of the main camera grabs the sub cameras.
+     */
+    @Override
+    protected boolean hasGrabberThread() {
+        return thread != null || mainCamera.thread != null;
+    }
+
+    /**
+     * All the sub cameras are latched together, as in grab(): the depth frame
+     * listeners (touch) run even when only the color is read.
+     */
+    @Override
+    protected void latchOnRead() {
+        mainCamera.latchCurrentImages();
+    }
+
+    @Override
+    void dispatchCurrentFrame(Camera source, CurrentFrame frame) {
+        super.dispatchCurrentFrame(source, frame);
+        mainCamera.dispatchCurrentFrame(source, frame);
+    }
+
     @Override
     public void grab() {
         if (isConnected) {
@@ -92,11 +124,11 @@ public class SubCamera extends Camera {
     
     @Override
     public PImage getPImage() {
-        // TODO: time management to avoid to send multiple times the same 
-        // frame to the graphics card. 
         this.checkCamImage();
-        if (currentImage != null) {
-            camImage.update(currentImage);
+        CurrentFrame frame = getCurrentFrame();
+        // Conversion and upload once per frame.
+        if (frame.image != null) {
+            camImage.update(frame.image, frame.version);
 //            return camImage;
         }
         return camImage;
@@ -66,6 +66,26 @@ public class TrackedView implements WithSize {
     private ProjectiveDeviceP pdp;
     private float heightOffset;
 
+    // Homography cache: computed again when the pose, the corners or the
+    // calibration (a new ProjectiveDeviceP) change.
+    private CvMat homography = null;
+    private ProjectiveDeviceP homographyDevice = null;
+    private long homographyVersion = 0;
+    private float[] cornersKey = new float[0];
+    private PMatrix3D lastPose = null;
+
+    // Last warp: skipped when the frame and the homography are the same.
+    private IplImage lastPImageSource = null, lastIplSource = null;
+    private long lastPImageFrame = -1, lastIplFrame = -1;
+    private long lastPImageHomography = -1, lastIplHomography = -1;
+
+    // Warp and conversion of 8 bits images in one pass, for the PImage views.
+    private final PerspectiveWarp warp = new PerspectiveWarp();
+    private long warpHomography = -1;
+    // Lens distortion applied while sampling, for cameras without undistortion.
+    private boolean undistort = false;
+    private ProjectiveDeviceP warpDistortion = null;
+
     public TrackedView() {
         this.useManualConrers = true;
     }
@@ -109,6 +129,7 @@ public class TrackedView implements WithSize {
     public void init(int frameType) {
         extractedPImage = new PImage(imageWidthPx, imageHeightPx, frameType);
         initiateImageCoordinates();
+        invalidate();
     }
 
     private void initiateImageCoordinates() {
@@ -131,17 +152,43 @@ public class TrackedView implements WithSize {
 
     public PImage getViewOf(Camera camera) {
         camera = Camera.checkActingCamera(camera);
+        // Image and version of the same frame.
+        Camera.CurrentFrame frame = camera.getCurrentFrame();
+        return getViewOf(camera, frame.image, frame.version);
+    }
 
-        IplImage img = camera.getIplImage();
+    /**
+     * View of a frame already taken from the camera, see TrackedViewGroup.
+     *
+     * @param camera
+     * @param img current image of the camera.
+     * @param frame its frame version, the extraction is skipped when the
+     * frame and the homography did not change.
+     * @return the view, null if it cannot be extracted.
+     */
+    public PImage getViewOf(Camera camera, IplImage img, long frame) {
+        camera = Camera.checkActingCamera(camera);
         if (!isExtractionReady(img)) {
             return null;
         }
 
         CvMat homography = computeHomography();
+        if (img == lastPImageSource && frame == lastPImageFrame
+                && homographyVersion == lastPImageHomography) {
+            return extractedPImage;
+        }
 
         boolean useRGB = camera.getPixelFormat() == Camera.PixelFormat.RGB;
-        // Convert to the good type... 
-        ImageUtils.remapImage(homography, img, extractedIplImage, extractedPImage, useRGB);
+        boolean fused = extract(homography, img, useRGB, camera);
+        lastPImageSource = img;
+        lastPImageFrame = frame;
+        lastPImageHomography = homographyVersion;
+        if (!fused) {
+            // The warp is also in extractedIplImage.
+            lastIplSource = img;
+            lastIplFrame = frame;
+            lastIplHomography = homographyVersion;
+        }
         return extractedPImage;
     }
 
@@ -156,19 +203,105 @@ public class TrackedView implements WithSize {
         CvMat homography = computeHomography();
 
         boolean useRGB = camera.getPixelFormat() == Camera.PixelFormat.RGB;
+        extract(homography, img, useRGB, camera);
+        // The content of the given image is unknown: no cache.
+        lastPImageSource = null;
+        lastIplSource = null;
+        return extractedPImage;
+    }
+
+    /**
+     * Warp the image into extractedPImage. 8 bits images are warped and
+     * converted in one pass, the others go through extractedIplImage.
+     *
+     * @return true if extractedIplImage was not used.
+     */
+    private boolean extract(CvMat homography, IplImage img, boolean useRGB, Camera camera) {
+        checkDistortion(camera);
+        if (PerspectiveWarp.supports(img)) {
+            if (warpHomography != homographyVersion || !warp.hasHomography()) {
+                warp.setHomography(homography);
+                warpHomography = homographyVersion;
+            }
+            if (warp.hasHomography()) {
+                warp.warp(img, useRGB, extractedPImage);
+                return true;
+            }
+        }
         // Convert to the good type... 
         ImageUtils.remapImage(homography, img, extractedIplImage, extractedPImage, useRGB);
-        return extractedPImage;
+        return false;
+    }
+
+    private void checkDistortion(Camera camera) {
+        ProjectiveDeviceP device = undistort && !camera.isUndistort()
+                && pdp.handleDistorsions() ? pdp : null;
+        if (device != warpDistortion) {
+            warp.setDistortion(device == null ? null : device.getDevice());
+            warpDistortion = device;
+        }
+    }
+
+    /**
+     * Undistort the PImage views while sampling them. It is used only when the
+     * camera does not undistort its frames (camera.setUndistort(false)): the
+     * lens distortion is then computed for the pixels of the view instead of
+     * the whole frame. The IplImage views are not undistorted.
+     *
+     * @param undistort
+     */
+    public void setUndistort(boolean undistort) {
+        if (undistort != this.undistort) {
+            this.undistort = undistort;
+            lastPImageSource = null;
+        }
+    }
+
+    public boolean isUndistort() {
+        return undistort;
+    }
+
+    /**
+     * @param bilinear interpolate the pixels of the PImage views (default), or
+     * take the nearest pixel.
+     */
+    public void setBilinear(boolean bilinear) {
+        if (bilinear != warp.isBilinear()) {
+            warp.setBilinear(bilinear);
+            lastPImageSource = null;
+        }
+    }
+
+    public boolean isBilinear() {
+        return warp.isBilinear();
     }
 
     public IplImage getIplViewOf(Camera camera) {
-        IplImage img = camera.getIplImage();
+        Camera.CurrentFrame frame = Camera.checkActingCamera(camera).getCurrentFrame();
+        return getIplViewOf(frame.image, frame.version);
+    }
+
+    /**
+     * IplImage view of a frame already taken from the camera, see
+     * TrackedViewGroup.
+     *
+     * @param img current image of the camera.
+     * @param frame its frame version.
+     * @return the view, null if it cannot be extracted.
+     */
+    public IplImage getIplViewOf(IplImage img, long frame) {
         if (!isExtractionReady(img)) {
             return null;
         }
         CvMat homography = computeHomography();
+        if (img == lastIplSource && frame == lastIplFrame
+                && homographyVersion == lastIplHomography) {
+            return extractedIplImage;
+        }
         ImageUtils.remapImageIpl(homography, img, extractedIplImage);
-
+        lastIplSource = img;
+        lastIplFrame = frame;
+        lastIplHomography = homographyVersion;
         return extractedIplImage;
     }
 
@@ -179,6 +312,8 @@ public class TrackedView implements WithSize {
 
         CvMat homography = computeHomography();
         ImageUtils.remapImageIpl(homography, img, extractedIplImage);
+        lastIplSource = null;
+        lastPImageSource = null;
         return extractedIplImage;
     }
 
@@ -207,16 +342,102 @@ public class TrackedView implements WithSize {
      * @return
      */
     public CvMat computeHomography() {
-        if (!this.useListofPairs) {
+        if (!this.useListofPairs && !useManualConrers) {
+            // The position is updated before it is compared to the last one.
+            updateMainPosition();
+        }
+        if (!this.useListofPairs && poseChanged()) {
             computeCorners();
         }
-        CvMat homography = createHomography(screenPixelCoordinates, imagePixelCoordinates);
+        if (homography == null || pdp != homographyDevice || cornersChanged()) {
+            homography = createHomography(screenPixelCoordinates, imagePixelCoordinates);
+            homographyDevice = pdp;
+            homographyVersion++;
+        }
         return homography;
     }
 
+    /**
+     * @return the version of the homography, it changes each time it is
+     * computed again.
+     */
+    public long getHomographyVersion() {
+        return homographyVersion;
+    }
+
+    private boolean poseChanged() {
+        if (useManualConrers) {
+            return false;
+        }
+        if (lastPose != null && pdp == homographyDevice && samePose(lastPose, pos)) {
+            return false;
+        }
+        if (lastPose == null) {
+            lastPose = new PMatrix3D();
+        }
+        lastPose.set(pos);
+        return true;
+    }
+
+    private static boolean samePose(PMatrix3D a, PMatrix3D b) {
+        return a.m00 == b.m00 && a.m01 == b.m01 && a.m02 == b.m02 && a.m03 == b.m03
+                && a.m10 == b.m10 && a.m11 == b.m11 && a.m12 == b.m12 && a.m13 == b.m13
+                && a.m20 == b.m20 && a.m21 == b.m21 && a.m22 == b.m22 && a.m23 == b.m23
+                && a.m30 == b.m30 && a.m31 == b.m31 && a.m32 == b.m32 && a.m33 == b.m33;
+    }
+
+    /**
+     * Compare the corners with the ones of the current homography. The
+     * values are compared: the PVectors can be modified in place.
+     */
+    private boolean cornersChanged() {
+        int size = (screenPixelCoordinates.size() + imagePixelCoordinates.size()) * 2;
+        boolean changed = size != cornersKey.length;
+        if (changed) {
+            cornersKey = new float[size];
+        }
+        changed |= updateKey(screenPixelCoordinates, 0);
+        changed |= updateKey(imagePixelCoordinates, screenPixelCoordinates.size() * 2);
+        return changed;
+    }
+
+    private boolean updateKey(ArrayList<PVector> points, int k) {
+        boolean changed = false;
+        for (int i = 0; i < points.size(); i++, k += 2) {
+            PVector p = points.get(i);
+            if (cornersKey[k] != p.x || cornersKey[k + 1] != p.y) {
+                cornersKey[k] = p.x;
+                cornersKey[k + 1] = p.y;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Force the computation of the homography and the extraction.
+     */
+    public void invalidate() {
+        homography = null;
+        warpHomography = -1;
+        lastPose = null;
+        lastPImageSource = null;
+        lastIplSource = null;
+    }
+
     private void checkMemory(IplImage memory) {
+        if (extractedIplImage != null
+                && (extractedIplImage.width() != imageWidthPx
+                || extractedIplImage.height() != imageHeightPx
+                || extractedIplImage.depth() != memory.depth()
+                || extractedIplImage.nChannels() != memory.nChannels())) {
+            ImagePool.getDefault().release(extractedIplImage);
+            extractedIplImage = null;
+            lastIplSource = null;
+        }
         if (extractedIplImage == null) {
-            extractedIplImage = ImageUtils.createNewSizeImageFrom(memory, imageWidthPx, imageHeightPx);
+            extractedIplImage = ImagePool.getDefault().acquire(imageWidthPx, imageHeightPx,
+                    memory.depth(), memory.nChannels());
 
             if (extractedIplImage == null) {
                 System.err.println("Impossible to create a View! " + this + " " + extractedPImage);
@@ -224,6 +445,16 @@ public class TrackedView implements WithSize {
         }
     }
 
+    /**
+     * Give the native image of the view back to the ImagePool. The view
+     * allocates it again if it is used after.
+     */
+    public void release() {
+        ImagePool.getDefault().release(extractedIplImage);
+        extractedIplImage = null;
+        lastIplSource = null;
+    }
+
     public void setMainPosition(PMatrix3D pos) {
         this.pos = pos;
     }
@@ -240,14 +471,12 @@ public class TrackedView implements WithSize {
 
     private void computeCorners() {
 
-        PMatrix3D pos = null;
+        PMatrix3D pos = this.pos;
 
         if (useManualConrers) {
             return;
         }
 
-        updateMainPosition();
-
         if (pos == null) {
             throw new RuntimeException("ERROR in TrackedView, report this.");
         }
@@ -335,6 +564,7 @@ public class TrackedView implements WithSize {
      */
     public void setBottomLeftCorner(PVector bottomLeftCorner) {
         this.bottomLeftCorner.set(bottomLeftCorner);
+        lastPose = null;
         this.isYUp = true;
         forceYOrientation(true, 0);
     }
@@ -342,6 +572,7 @@ public class TrackedView implements WithSize {
     public void forceYOrientation(boolean up, float height) {
         this.isYUp = up;
         this.heightOffset = height;
+        lastPose = null;
     }
 
     /**
@@ -367,6 +598,7 @@ public class TrackedView implements WithSize {
 
     public void setCaptureSizeMM(PVector captureSizeMM) {
         this.captureSizeMM.set(captureSizeMM);
+        lastPose = null;
     }
 
     public int getImageWidthPx() {
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import processing.core.PImage;
+
+/**
+ * Extraction of many TrackedViews from the same camera frame.
+ *
+ * The frame is taken once from the camera, then the views are extracted in
+ * parallel on the executor. Each view keeps its own homography and buffers,
+ * a view must not be in two groups used at the same time.
+ *
+ * @author Jeremy Laviole
+ */
+public class TrackedViewGroup {
+
+    private final ArrayList<TrackedView> views = new ArrayList<>();
+    private Executor executor = ForkJoinPool.commonPool();
+
+    public TrackedViewGroup() {
+    }
+
+    public TrackedViewGroup(TrackedView... views) {
+        for (TrackedView view : views) {
+            add(view);
+        }
+    }
+
+    public synchronized TrackedViewGroup add(TrackedView view) {
+        if (!views.contains(view)) {
+            views.add(view);
+        }
+        return this;
+    }
+
+    public synchronized boolean remove(TrackedView view) {
+        return views.remove(view);
+    }
+
+    public synchronized void clear() {
+        views.clear();
+    }
+
+    public synchronized int size() {
+        return views.size();
+    }
+
+    public synchronized TrackedView get(int i) {
+        return views.get(i);
+    }
+
+    /**
+     * @param executor executor of the extractions, null to extract the views
+     * one after the other in the calling thread. Default: the common
+     * fork-join pool.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Extract the PImage views of the current frame of the camera.
+     *
+     * @param camera
+     * @return the views, in the order of the group, and the frame version.
+     */
+    public Views getViewsOf(Camera camera) {
+        return extract(camera, false);
+    }
+
+    /**
+     * Extract the IplImage views of the current frame of the camera.
+     *
+     * @param camera
+     * @return the views, in the order of the group, and the frame version.
+     */
+    public Views getIplViewsOf(Camera camera) {
+        return extract(camera, true);
+    }
+
+    private Views extract(Camera camera, boolean ipl) {
+        Camera acting = Camera.checkActingCamera(camera);
+        // The frame and its version are read together.
+        Camera.CurrentFrame current = acting.getCurrentFrame();
+        IplImage img = current.image;
+        long frame = current.version;
+        TrackedView[] group;
+        synchronized (this) {
+            group = views.toArray(new TrackedView[views.size()]);
+        }
+        Object[] results = new Object[group.length];
+
+        Executor ex = this.executor;
+        if (ex == null || group.length <= 1) {
+            for (int i = 0; i < group.length; i++) {
+                results[i] = extract(group[i], acting, img, frame, ipl);
+            }
+            return new Views(group, results, frame);
+        }
+
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[group.length];
+        for (int i = 0; i < group.length; i++) {
+            final int k = i;
+            tasks[i] = CompletableFuture.runAsync(()
+                    -> results[k] = extract(group[k], acting, img, frame, ipl), ex);
+        }
+        for (int i = 0; i < tasks.length; i++) {
+            try {
+                tasks[i].join();
+            } catch (CompletionException e) {
+                System.err.println("TrackedViewGroup: cannot extract " + group[i] + ": " + e.getCause());
+            }
+        }
+        return new Views(group, results, frame);
+    }
+
+    private static Object extract(TrackedView view, Camera camera, IplImage img, long frame, boolean ipl) {
+        return ipl ? view.getIplViewOf(img, frame) : view.getViewOf(camera, img, frame);
+    }
+
+    /**
+     * Views extracted from one frame.
+     */
+    public static class Views {
+
+        private final TrackedView[] views;
+        private final Object[] images;
+        private final long frameVersion;
+
+        private Views(TrackedView[] views, Object[] images, long frameVersion) {
+            this.views = views;
+            this.images = images;
+            this.frameVersion = frameVersion;
+        }
+
+        /**
+         * @return the frame version of the camera, for all the views.
+         */
+        public long getFrameVersion() {
+            return frameVersion;
+        }
+
+        public int size() {
+            return views.length;
+        }
+
+        public TrackedView getView(int i) {
+            return views[i];
+        }
+
+        /**
+         * @param i
+         * @return the PImage of the view, null if it was not extracted.
+         */
+        public PImage getPImage(int i) {
+            return images[i] instanceof PImage ? (PImage) images[i] : null;
+        }
+
+        /**
+         * @param i
+         * @return the IplImage of the view, null if it was not extracted.
+         */
+        public IplImage getIplImage(int i) {
+            return images[i] instanceof IplImage ? (IplImage) images[i] : null;
+        }
+
+        /**
+         * @param view
+         * @return the PImage of the view, null if it is not in the group.
+         */
+        public PImage getPImage(TrackedView view) {
+            for (int i = 0; i < views.length; i++) {
+                if (views[i] == view) {
+                    return getPImage(i);
+                }
+            }
+            return null;
+        }
+
+        public IplImage getIplImage(TrackedView view) {
+            for (int i = 0; i < views.length; i++) {
+                if (views[i] == view) {
+                    return getIplImage(i);
+                }
+            }
+            return null;
+        }
+    }
+}
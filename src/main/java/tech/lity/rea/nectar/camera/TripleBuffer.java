@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Triple buffer to exchange frames between one producer and the consumers.
+ *
+ * The producer fills getWriteBuffer() and calls publish(), it never blocks.
+ * The consumer calls getReadBuffer() to get the latest complete frame. The
+ * three buffers are never shared: the producer cannot write in the buffer
+ * being read.
+ *
+ * There is a single consumer: the buffer it read is given back to the
+ * producer when it gets a newer frame. Other readers go through it, see
+ * Camera.latchCurrentImage().
+ *
+ * @author Jeremy Laviole
+ * @param <T> buffer type, an image for instance.
+ */
+public class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 3;
+    private static final int NEW_FRAME = 4;
+
+    private final Object[] buffers = new Object[3];
+
+    // Index of the buffer in between, with the NEW_FRAME flag.
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    // Only used by the producer.
+    private int writeIndex = 0;
+    private long publishCount = 0;
+
+    // Only used by the consumers.
+    private int readIndex = 2;
+    private boolean hasFrame = false;
+
+    public TripleBuffer(T first, T second, T third) {
+        buffers[0] = first;
+        buffers[1] = second;
+        buffers[2] = third;
+    }
+
+    /**
+     * Producer side: buffer to fill with the next frame.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) buffers[writeIndex];
+    }
+
+    /**
+     * Producer side: the write buffer is complete. It becomes the latest
+     * frame and a free buffer is given for the next write.
+     */
+    public void publish() {
+        int previous = middle.getAndSet(writeIndex | NEW_FRAME);
+        writeIndex = previous & INDEX_MASK;
+        publishCount++;
+    }
+
+    /**
+     * @return true when a frame was published since the last getReadBuffer().
+     */
+    public boolean hasNewFrame() {
+        return (middle.get() & NEW_FRAME) != 0;
+    }
+
+    /**
+     * Consumer side: get the latest complete frame.
+     *
+     * @return the latest frame, null if nothing was published yet.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T getReadBuffer() {
+        if ((middle.get() & NEW_FRAME) != 0) {
+            int previous = middle.getAndSet(readIndex);
+            readIndex = previous & INDEX_MASK;
+            hasFrame = true;
+        }
+        return hasFrame ? (T) buffers[readIndex] : null;
+    }
+
+    /**
+     * Consumer side: get the frame currently read, without looking for a
+     * newer one.
+     *
+     * @return the current frame, null if nothing was read yet.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T getCurrentReadBuffer() {
+        return hasFrame ? (T) buffers[readIndex] : null;
+    }
+
+    /**
+     * @return number of frames published, read by the producer only.
+     */
+    public long getPublishCount() {
+        return publishCount;
+    }
+
+    /**
+     * @param i 0 to 2
+     * @return one of the three buffers, whatever its role (to free them).
+     */
+    @SuppressWarnings("unchecked")
+    public T getBuffer(int i) {
+        return (T) buffers[i];
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 RealityTech.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package tech.lity.rea.nectar.camera;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_32F;
+import org.bytedeco.javacv.ProjectiveDevice;
+
+/**
+ * Lens undistortion as a table lookup per pixel.
+ *
+ * The source location of each pixel is computed once per calibration, from
+ * the undistortion maps of the device. Images are then remapped in Java,
+ * by bands of rows in parallel.
+ *
+ * @author Jeremy Laviole
+ */
+public class UndistortMap {
+
+    private static final int PARALLEL_MIN_PIXELS = 320 * 240;
+
+    private final int width, height;
+    // Source pixel for each pixel: y << 16 | x, -1 when outside.
+    private final int[] coords;
+    // Bilinear weights, 0 to 256: fy << 16 | fx.
+    private final int[] weights;
+
+    private final ThreadLocal<byte[]> rows = new ThreadLocal<>();
+    private byte[] source = null;
+
+    private UndistortMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.coords = new int[width * height];
+        this.weights = new int[width * height];
+    }
+
+    /**
+     * Build the map of a calibrated device.
+     *
+     * @param device
+     * @param width image width
+     * @param height image height
+     * @return the map, null if the device cannot give its float maps.
+     */
+    public static UndistortMap create(ProjectiveDevice device, int width, int height) {
+        IplImage mapX = device.getUndistortMap1();
+        IplImage mapY = device.getUndistortMap2();
+        if (mapX == null || mapY == null
+                || mapX.depth() != IPL_DEPTH_32F || mapX.nChannels() != 1
+                || mapY.depth() != IPL_DEPTH_32F || mapY.nChannels() != 1
+                || mapX.width() != width || mapX.height() != height) {
+            return null;
+        }
+        UndistortMap map = new UndistortMap(width, height);
+        FloatBuffer xs = mapX.getFloatBuffer();
+        FloatBuffer ys = mapY.getFloatBuffer();
+        int strideX = mapX.widthStep() / 4;
+        int strideY = mapY.widthStep() / 4;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                map.set(y * width + x, xs.get(y * strideX + x), ys.get(y * strideY + x));
+            }
+        }
+        return map;
+    }
+
+    private void set(int i, float sx, float sy) {
+        if (!(sx >= 0 && sy >= 0 && sx <= width - 1 && sy <= height - 1)) {
+            coords[i] = -1;
+            return;
+        }
+        int x0 = Math.min((int) sx, width - 2);
+        int y0 = Math.min((int) sy, height - 2);
+        int fx = Math.round((sx - x0) * 256);
+        int fy = Math.round((sy - y0) * 256);
+        coords[i] = y0 << 16 | x0;
+        weights[i] = fy << 16 | fx;
+    }
+
+    public boolean matches(IplImage img) {
+        return img.width() == width && img.height() == height;
+    }
+
+    /**
+     * Undistort an image, with 8 bits samples.
+     *
+     * @param src
+     * @param dst image of the same size and format.
+     * @param bilinear interpolate the samples, or take the nearest pixel (for
+     * depth images).
+     */
+    public void remap(IplImage src, IplImage dst, boolean bilinear) {
+        int imageSize = src.imageSize();
+        if (source == null || source.length != imageSize) {
+            source = new byte[imageSize];
+        }
+        ByteBuffer in = src.getByteBuffer();
+        in.get(source, 0, imageSize);
+        in.rewind();
+
+        int channels = src.nChannels() * bytesPerSample(src);
+        int srcStep = src.widthStep();
+        ByteBuffer out = dst.getByteBuffer();
+        int dstStep = dst.widthStep();
+
+        if (width * height < PARALLEL_MIN_PIXELS) {
+            remapRows(out.duplicate(), dstStep, srcStep, channels, bilinear, 0, height);
+            return;
+        }
+        int bands = ForkJoinPool.getCommonPoolParallelism() * 2;
+        int rowsPerBand = (height + bands - 1) / bands;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int start = band * rowsPerBand;
+            remapRows(out.duplicate(), dstStep, srcStep, channels, bilinear,
+                    start, Math.min(height, start + rowsPerBand));
+        });
+    }
+
+    private static int bytesPerSample(IplImage img) {
+        return Math.max(1, (img.depth() & 255) / 8);
+    }
+
+    private void remapRows(ByteBuffer out, int dstStep, int srcStep, int channels,
+            boolean bilinear, int startRow, int endRow) {
+        int rowSize = width * channels;
+        byte[] row = rows.get();
+        if (row == null || row.length < rowSize) {
+            row = new byte[rowSize];
+            rows.set(row);
+        }
+        byte[] src = source;
+        for (int y = startRow; y < endRow; y++) {
+            int k = 0;
+            for (int i = y * width, end = i + width; i < end; i++) {
+                int p = coords[i];
+                if (p < 0) {
+                    for (int c = 0; c < channels; c++) {
+                        row[k++] = 0;
+                    }
+                    continue;
+                }
+                int w = weights[i];
+                int fx = w & 0xFFFF;
+                int fy = w >>> 16;
+                int base = (p >>> 16) * srcStep + (p & 0xFFFF) * channels;
+                if (!bilinear) {
+                    base += (fy >= 128 ? srcStep : 0) + (fx >= 128 ? channels : 0);
+                    for (int c = 0; c < channels; c++) {
+                        row[k++] = src[base + c];
+                    }
+                    continue;
+                }
+                for (int c = 0; c < channels; c++) {
+                    int b = base + c;
+                    int a00 = src[b] & 255;
+                    int a01 = src[b + channels] & 255;
+                    int a10 = src[b + srcStep] & 255;
+                    int a11 = src[b + srcStep + channels] & 255;
+                    int top = (a00 << 8) + (a01 - a00) * fx;
+                    int bottom = (a10 << 8) + (a11 - a10) * fx;
+                    row[k++] = (byte) (((top << 8) + (bottom - top) * fy + (1 << 15)) >> 16);
+                }
+            }
+            out.position(y * dstStep);
+            out.put(row, 0, rowSize);
+        }
+    }
+}
@@ -5,30 +5,60 @@
  */
 package tech.lity.rea.nectar.camera;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import org.bytedeco.javacpp.opencv_core.IplImage;
-import static processing.core.PConstants.ARGB;
 import static processing.core.PConstants.RGB;
 import processing.core.PImage;
 import processing.data.JSONObject;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 
 /**
  *
  * @author Jeremy Laviole
  */
-public class VideoEmitter extends RedisClientImpl {
+public class VideoEmitter extends RedisClientImpl implements Metrics.Source {
 
     Jedis redis, redisSend;
 
     private String output = "image";
     private PImage imageRef;
     private int colorImageCount;
+    private boolean publishData = false;
+    private boolean sendHeader = false;
+    private final FrameHeader header = new FrameHeader();
+    private byte[] frame = null;
+    private FrameCodec codec = null;
+    private byte[] encodedFrame = null;
+    // Encoded frame copied to its size, for the synchronous mode.
+    private byte[] sizedFrame = null;
+
+    // Encoding of the PImages: null to follow the image format.
+    private Camera.PixelFormat outputFormat = null;
+    private Camera.PixelFormat imageFormat = Camera.PixelFormat.ARGB;
+    private byte[] encoded = null;
+
+    // Asynchronous mode: frames are sent by the sender thread.
+    public static final int DEFAULT_QUEUE_SIZE = 2;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private final ConcurrentLinkedQueue<Frame> freeFrames = new ConcurrentLinkedQueue<>();
+    // Set and cleared by setAsync(), read by the thread sending the images.
+    private volatile SenderThread sender = null;
+    // Wait before connecting again when the sender loses Redis.
+    private static final long RECONNECT_MIN_MILLIS = 100;
+    private static final long RECONNECT_MAX_MILLIS = 5000;
+    private final Frame syncFrame = new Frame();
+
+    // Statistics
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong totalSendLatency = new AtomicLong();
+    private volatile long lastSendLatency = 0;
+    private final LatencyHistogram sendLatency = new LatencyHistogram("send");
 
     public VideoEmitter() {
     }
@@ -37,6 +67,7 @@ public class VideoEmitter extends RedisClientImpl {
         super(client);
         this.output = key;
         redis = createConnection();
+        Metrics.getDefault().addSource("emitter." + key, this);
     }
     public VideoEmitter(String host, int port, String auth, String key) {
         this.setRedisHost(host);
@@ -44,64 +75,522 @@ public class VideoEmitter extends RedisClientImpl {
         this.setRedisAuth(auth);
         this.output = key;
         redis = createConnection();
+        Metrics.getDefault().addSource("emitter." + key, this);
+    }
+
+    /**
+     * Send the image inside the publish message, instead of a notification.
+     * Subscribers get the frame in one round trip, and it is the one they
+     * were notified for. The key is still set for the get mode.
+     *
+     * @param publishData
+     */
+    public void setPublishData(boolean publishData) {
+        this.publishData = publishData;
+    }
+
+    public boolean isPublishData() {
+        return publishData;
+    }
+
+    /**
+     * Put a FrameHeader in front of each frame, receivers then follow size
+     * and format changes without reading the metadata keys.
+     *
+     * @param sendHeader
+     */
+    public void setSendHeader(boolean sendHeader) {
+        this.sendHeader = sendHeader;
+    }
+
+    public boolean isSendHeader() {
+        return sendHeader;
+    }
+
+    /**
+     * Compress the raw frames of the formats supported by the codec. The
+     * codec is given in the frame header, it enables the header.
+     *
+     * @param codec codec to use, null to send raw frames.
+     */
+    public void setCodec(FrameCodec codec) {
+        this.codec = codec;
+        if (codec != null) {
+            this.sendHeader = true;
+        }
+    }
+
+    public FrameCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Layout of the pixels sent by sendImage: RGB, BGR or ARGB. By default
+     * RGB images are sent as RGB and the others as ARGB.
+     *
+     * @param format
+     */
+    public void setOutputFormat(Camera.PixelFormat format) {
+        if (format != null && format != Camera.PixelFormat.RGB
+                && format != Camera.PixelFormat.BGR
+                && format != Camera.PixelFormat.ARGB) {
+            System.err.println("VideoEmitter: cannot send images as " + format + ".");
+            return;
+        }
+        this.outputFormat = format;
+        // Send the parameters again.
+        this.imageRef = null;
+    }
+
+    public Camera.PixelFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    private Camera.PixelFormat formatOf(PImage img) {
+        if (outputFormat != null) {
+            return outputFormat;
+        }
+        return img.format == RGB ? Camera.PixelFormat.RGB : Camera.PixelFormat.ARGB;
     }
 
     public void setReference(PImage img) {
         imageRef = img;
+        imageFormat = formatOf(img);
         sendParams(img);
     }
 
+    /**
+     * Send an image, its capture time is the time of the call.
+     *
+     * @param img
+     * @param time time given to the receivers, in milliseconds.
+     */
     public void sendImage(PImage img, int time) {
-        if (imageRef == null || img.width != imageRef.width || img.height != imageRef.height) {
+        long captureNanos = FrameClock.nanoTime();
+        if (imageRef == null || img.width != imageRef.width || img.height != imageRef.height
+                || formatOf(img) != imageFormat) {
             setReference(img);
         }
 
         img.loadPixels();
-        byte[] imageData;
-        try {
-            imageData = integersToBytes(img.pixels);
-        } catch (IOException ex) {
-            Logger.getLogger(VideoEmitter.class.getName()).log(Level.SEVERE, null, ex);
-            System.err.println("Cannot convert image to bytes.");
+
+        // The header and the pixels are written in place in a reused buffer.
+        int offset = sendHeader ? FrameHeader.HEADER_SIZE : 0;
+        int stride = img.width * Camera.bytesPerPixel(imageFormat);
+        int payloadLength = stride * img.height;
+        if (encoded == null || encoded.length != offset + payloadLength) {
+            encoded = new byte[offset + payloadLength];
+        }
+        encodePixels(img.pixels, encoded, offset, imageFormat);
+        if (sendHeader) {
+            header.set(colorImageCount + 1, captureNanos, img.width, img.height,
+                    stride, imageFormat, payloadLength);
+            header.write(encoded);
+        }
+        send(encoded, time, captureNanos);
+    }
+
+    /**
+     * Write ARGB pixels in the given layout.
+     *
+     * @param pixels ARGB pixels
+     * @param out destination
+     * @param offset start in out
+     * @param format RGB, BGR or ARGB.
+     */
+    static void encodePixels(int[] pixels, byte[] out, int offset, Camera.PixelFormat format) {
+        int k = offset;
+        switch (format) {
+            case RGB:
+                for (int i = 0; i < pixels.length; i++) {
+                    int p = pixels[i];
+                    out[k] = (byte) (p >> 16);
+                    out[k + 1] = (byte) (p >> 8);
+                    out[k + 2] = (byte) p;
+                    k += 3;
+                }
+                break;
+            case BGR:
+                for (int i = 0; i < pixels.length; i++) {
+                    int p = pixels[i];
+                    out[k] = (byte) p;
+                    out[k + 1] = (byte) (p >> 8);
+                    out[k + 2] = (byte) (p >> 16);
+                    k += 3;
+                }
+                break;
+            case ARGB:
+            default:
+                for (int i = 0; i < pixels.length; i++) {
+                    int p = pixels[i];
+                    out[k] = (byte) (p >> 24);
+                    out[k + 1] = (byte) (p >> 16);
+                    out[k + 2] = (byte) (p >> 8);
+                    out[k + 3] = (byte) p;
+                    k += 4;
+                }
+        }
+    }
+
+    /**
+     * Send raw data. With the header, the data is described by the reference
+     * image (ARGB, see setReference).
+     *
+     * @param imageData
+     * @param time
+     */
+    public void sendRawImage(byte[] imageData, int time) {
+        if (sendHeader && imageRef != null) {
+            sendRawImage(imageData, imageRef.width, imageRef.height, Camera.PixelFormat.ARGB, time);
+            return;
+        }
+        send(imageData, time, FrameClock.nanoTime());
+    }
+
+    /**
+     * Send raw data, described in the frame header when it is enabled.
+     *
+     * @param imageData pixels, rows of imageData.length / height bytes.
+     * @param width
+     * @param height
+     * @param format
+     * @param time
+     */
+    public void sendRawImage(byte[] imageData, int width, int height, Camera.PixelFormat format, long time) {
+        sendRawImage(imageData, width, height, format, time, FrameClock.nanoTime());
+    }
+
+    /**
+     * Send raw data, with the time it was captured. The receivers measure
+     * the latency of the pipeline from it.
+     *
+     * @param imageData pixels, rows of imageData.length / height bytes.
+     * @param width
+     * @param height
+     * @param format
+     * @param time time given to the receivers, in milliseconds.
+     * @param captureNanos capture time, see FrameClock.
+     */
+    public void sendRawImage(byte[] imageData, int width, int height, Camera.PixelFormat format,
+            long time, long captureNanos) {
+        if (!sendHeader) {
+            send(imageData, time, captureNanos);
+            return;
+        }
+        if (codec != null && codec.supports(format)
+                && imageData.length == width * height * Camera.bytesPerPixel(format)) {
+            sendEncoded(imageData, width, height, format, time, captureNanos);
             return;
         }
+        int length = FrameHeader.HEADER_SIZE + imageData.length;
+        if (frame == null || frame.length != length) {
+            frame = new byte[length];
+        }
+        header.set(colorImageCount + 1, captureNanos, width, height,
+                imageData.length / height, format, imageData.length);
+        header.write(frame);
+        System.arraycopy(imageData, 0, frame, FrameHeader.HEADER_SIZE, imageData.length);
+        send(frame, time, captureNanos);
+    }
 
-        sendRawImage(imageData, time);
+    private void sendEncoded(byte[] imageData, int width, int height, Camera.PixelFormat format,
+            long time, long captureNanos) {
+        int maxLength = FrameHeader.HEADER_SIZE + codec.maxEncodedLength(width, height, format);
+        if (encodedFrame == null || encodedFrame.length < maxLength) {
+            encodedFrame = new byte[maxLength];
+        }
+        int payloadLength = codec.encode(imageData, 0, width, height, format,
+                encodedFrame, FrameHeader.HEADER_SIZE);
+        header.set(colorImageCount + 1, captureNanos, width, height,
+                width * Camera.bytesPerPixel(format), format, payloadLength);
+        header.setCodec(codec.getId());
+        header.write(encodedFrame);
+        header.setCodec(FrameHeader.CODEC_RAW);
+        send(encodedFrame, FrameHeader.HEADER_SIZE + payloadLength, time, captureNanos);
+    }
 
+    private void send(byte[] imageData, long time, long captureNanos) {
+        send(imageData, imageData.length, time, captureNanos);
     }
 
-    public void sendRawImage(byte[] imageData, int time) {
+    /**
+     * @param imageData the data to send is its first length bytes.
+     */
+    private void send(byte[] imageData, int length, long time, long captureNanos) {
         colorImageCount++;
+        SenderThread s = sender;
+        if (s == null) {
+            // Jedis sends whole arrays: the data is copied to its size, in
+            // an array reused while the size does not change.
+            if (length != imageData.length) {
+                if (sizedFrame == null || sizedFrame.length != length) {
+                    sizedFrame = new byte[length];
+                }
+                System.arraycopy(imageData, 0, sizedFrame, 0, length);
+                imageData = sizedFrame;
+            }
+            syncFrame.set(imageData, time, colorImageCount);
+            syncFrame.captureNanos = captureNanos;
+            sendFrame(redis, syncFrame);
+            return;
+        }
+        // The data is copied: the caller can reuse its array.
+        Frame f = freeFrames.poll();
+        if (f == null) {
+            f = new Frame();
+        }
+        if (f.data == null || f.data.length != length) {
+            f.data = new byte[length];
+        }
+        System.arraycopy(imageData, 0, f.data, 0, length);
+        f.set(f.data, time, colorImageCount);
+        f.captureNanos = captureNanos;
+        enqueue(s.frames, f);
+    }
+
+    public void republish() {
+        Frame f = new Frame();
+        f.set(null, System.currentTimeMillis(), colorImageCount);
+        SenderThread s = sender;
+        if (s == null) {
+            sendFrame(redis, f);
+        } else {
+            enqueue(s.frames, f);
+        }
+    }
+
+    /**
+     * Drop the oldest frames when the queue is full.
+     */
+    private void enqueue(ArrayBlockingQueue<Frame> queue, Frame f) {
+        f.queueTime = System.nanoTime();
+        while (!queue.offer(f)) {
+            Frame old = queue.poll();
+            if (old != null) {
+                droppedFrames.incrementAndGet();
+                recycle(old);
+            }
+        }
+    }
+
+    private void recycle(Frame f) {
+        if (f.data != null) {
+            freeFrames.offer(f);
+        }
+    }
+
+    /**
+     * Set the key and publish, in one round trip. A frame without data is a
+     * republish: only the notification is sent.
+     *
+     * @return false if the frame could not be sent.
+     */
+    private boolean sendFrame(Jedis connection, Frame f) {
         byte[] id = output.getBytes();
         JSONObject imageInfo = new JSONObject();
-        imageInfo.setLong("timestamp", time);
-        imageInfo.setLong("imageCount", colorImageCount);
+        imageInfo.setLong("timestamp", f.time);
+        imageInfo.setLong("imageCount", f.imageCount);
+        if (f.captureNanos != 0) {
+            imageInfo.setLong("captureNanos", f.captureNanos);
+        }
+        long start = f.queueTime != 0 ? f.queueTime : System.nanoTime();
         try {
-            redis.set(id, imageData);
-            redis.publish(id, imageInfo.toString().getBytes());
+            Pipeline pipeline = connection.pipelined();
+            if (f.data != null) {
+                pipeline.set(id, f.data);
+            }
+            if (publishData && f.data != null) {
+                pipeline.publish(id, f.data);
+            } else {
+                pipeline.publish(id, imageInfo.toString().getBytes());
+            }
+            pipeline.sync();
+
+            long latency = System.nanoTime() - start;
+            lastSendLatency = latency;
+            totalSendLatency.addAndGet(latency);
+            sendLatency.record(latency);
+            sentFrames.incrementAndGet();
+            return true;
         } catch (Exception e) {
             System.out.println("Sending: " + output + " : " + imageInfo.toString());
             System.out.println("Exception: " + e);
             e.printStackTrace();
+            return false;
         }
     }
 
-    public void republish() {
-        byte[] id = output.getBytes();
-        JSONObject imageInfo = new JSONObject();
-        imageInfo.setLong("timestamp", System.currentTimeMillis());
-        imageInfo.setLong("imageCount", colorImageCount);
-        redis.publish(id, imageInfo.toString().getBytes());
+    /**
+     * Asynchronous mode: the frames are queued and sent by a dedicated
+     * thread, the caller (usually the draw thread) does not wait for Redis.
+     * When the queue is full the oldest frame is dropped.
+     *
+     * @param async
+     */
+    public synchronized void setAsync(boolean async) {
+        if (async && sender == null) {
+            redisSend = createConnection();
+            sender = new SenderThread(new ArrayBlockingQueue<>(queueSize), redisSend);
+            sender.start();
+        }
+        if (!async && sender != null) {
+            sender.stopThread();
+            sender = null;
+        }
+    }
+
+    public boolean isAsync() {
+        return sender != null;
+    }
+
+    /**
+     * Size of the send queue, applied when the asynchronous mode starts.
+     *
+     * @param queueSize
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    public int getQueueDepth() {
+        SenderThread s = sender;
+        return s == null ? 0 : s.frames.size();
+    }
+
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return time from the send call to the Redis answer, for the last
+     * frame.
+     */
+    public float getLastSendLatencyMillis() {
+        return lastSendLatency / 1e6f;
+    }
+
+    public float getMeanSendLatencyMillis() {
+        long sent = sentFrames.get();
+        return sent == 0 ? 0 : totalSendLatency.get() / 1e6f / sent;
+    }
+
+    /**
+     * @return time from the send call to the Redis answer, for all the
+     * frames.
+     */
+    public LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    @Override
+    public void reportMetrics(String prefix, Map<String, Number> out) {
+        out.put(prefix + ".sent", getSentFrames());
+        out.put(prefix + ".dropped", getDroppedFrames());
+        out.put(prefix + ".queue", getQueueDepth());
+        Metrics.putHistogram(out, prefix + ".latency.send", sendLatency);
+    }
+
+    @Override
+    public void resetMetrics() {
+        sendLatency.reset();
+    }
+
+    /**
+     * Stop the sender thread and close the connections.
+     */
+    public void close() {
+        if (output != null) {
+            Metrics.getDefault().removeSource("emitter." + output);
+        }
+        setAsync(false);
+        if (redis != null) {
+            redis.close();
+            redis = null;
+        }
+    }
+
+    private static class Frame {
+
+        byte[] data;
+        long time;
+        long imageCount;
+        long queueTime;
+        // FrameClock time of the capture, 0 for a republish.
+        long captureNanos;
+
+        void set(byte[] data, long time, long imageCount) {
+            this.data = data;
+            this.time = time;
+            this.imageCount = imageCount;
+            this.queueTime = 0;
+            this.captureNanos = 0;
+        }
     }
 
-    byte[] integersToBytes(int[] values) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        for (int i = 0; i < values.length; ++i) {
-            dos.writeInt(values[i]);
+    private class SenderThread extends Thread {
+
+        private final ArrayBlockingQueue<Frame> frames;
+        private Jedis connection;
+        private volatile boolean running = true;
+
+        public SenderThread(ArrayBlockingQueue<Frame> frames, Jedis connection) {
+            super("VideoEmitter " + output);
+            this.frames = frames;
+            this.connection = connection;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long wait = RECONNECT_MIN_MILLIS;
+            while (running) {
+                try {
+                    Frame f = frames.take();
+                    boolean sent = sendFrame(connection, f);
+                    recycle(f);
+                    if (sent) {
+                        wait = RECONNECT_MIN_MILLIS;
+                        continue;
+                    }
+                    // The frame is lost, the next ones wait in the queue.
+                    droppedFrames.incrementAndGet();
+                    System.out.println("Retrying to connect in " + wait + " ms...");
+                    Thread.sleep(wait);
+                    wait = Math.min(wait * 2, RECONNECT_MAX_MILLIS);
+                    reconnect();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        private void reconnect() {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                System.err.println("VideoEmitter: error closing the connection: " + e);
+            }
+            try {
+                connection = createConnection();
+            } catch (Exception e) {
+                connection = null;
+                System.err.println("VideoEmitter: cannot connect to Redis: " + e);
+            }
         }
 
-        return baos.toByteArray();
+        public void stopThread() {
+            running = false;
+            interrupt();
+        }
     }
 
     private void sendParams(PImage img) {
@@ -109,16 +598,8 @@ public class VideoEmitter extends RedisClientImpl {
         System.out.println("connec: " + redis);
         redis.set(output + ":width", Integer.toString(img.width));
         redis.set(output + ":height", Integer.toString(img.height));
-        redis.set(output + ":channels", Integer.toString(4));
+        redis.set(output + ":channels", Integer.toString(Camera.bytesPerPixel(imageFormat)));
+        redis.set(output + ":pixelformat", imageFormat.toString());
         redis.clientSetname("VideoEmitter");
-
-        if (img.format == RGB) {
-            redis.set(output + ":pixelformat", Camera.PixelFormat.RGB.toString());
-        }
-
-        if (img.format == ARGB) {
-            redis.set(output + ":pixelformat", Camera.PixelFormat.ARGB.toString());
-        }
-
     }
 }
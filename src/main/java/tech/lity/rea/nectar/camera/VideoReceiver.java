@@ -5,6 +5,7 @@
  */
 package tech.lity.rea.nectar.camera;
 
+import java.util.List;
 import processing.core.PApplet;
 import static processing.core.PConstants.RGB;
 import processing.core.PImage;
@@ -25,32 +26,42 @@ public class VideoReceiver {
     Jedis redisSub, redisGet;
     String format;
 //    int[] incomingPixels;
-    private PImage receivedPx;
+    // Written by the Redis thread, read by getReceivedPx().
+    private TripleBuffer<PImage> images;
 
     int widthStep = 0;
     int channels = 3;
     private String input;
+    private final PApplet applet;
+    private final FrameHeader header = new FrameHeader();
+    private byte[] decoded = null;
+    private RowConverter converter = RowConverter.RGB;
+    private boolean parallel = true;
 
     static private String host = REDIS_HOST;
     static private int port = REDIS_PORT;
 
     public VideoReceiver(PApplet applet, String input, Jedis redis) {
         redisGet = redis;
+        this.applet = applet;
         int w = DEFAULT_WIDTH, h = DEFAULT_HEIGHT;
         widthStep = w * 3;
         this.input = input;
         try {
-            w = Integer.parseInt(redisGet.get(input + ":width"));
-            h = Integer.parseInt(redisGet.get(input + ":height"));
+            // One round trip. Frames with a header override these values.
+            List<String> params = redisGet.mget(input + ":width",
+                    input + ":height",
+                    input + ":pixelformat",
+                    input + ":widthStep");
+            w = Integer.parseInt(params.get(0));
+            h = Integer.parseInt(params.get(1));
             widthStep = w;
-            format = redisGet.get(input + ":pixelformat");
-            if (format.equals("RGB") || format.equals("BGR")) {
-                channels = 3;
+            format = params.get(2);
+            converter = RowConverter.forFormat(Camera.PixelFormat.valueOf(format));
+            if (converter != null) {
+                channels = converter.getBytesPerPixel();
             }
-            if (format.equals("RGBA") || format.equals("ARGB")) {
-                channels = 4;
-            }
-            String wi = redisGet.get(input + ":widthStep");
+            String wi = params.get(3);
             if (wi != null) {
                 widthStep = Integer.parseInt(wi);
             }
@@ -59,20 +70,43 @@ public class VideoReceiver {
             System.err.println("Cannot get image size, using 640x480.");
             e.printStackTrace();;
         }
-        receivedPx = applet.createImage(w, h, RGB);
+        images = createImages(w, h);
+    }
+
+    private TripleBuffer<PImage> createImages(int w, int h) {
+        return new TripleBuffer<>(applet.createImage(w, h, RGB),
+                applet.createImage(w, h, RGB),
+                applet.createImage(w, h, RGB));
     }
 
     public void start(Jedis pubsub) {
         new RedisThread(pubsub).start();
     }
 
+    /**
+     * Convert the large frames using the common fork-join pool.
+     *
+     * @param parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
     public PImage getOnce() throws Exception {
         updateImage();
-        return receivedPx;
+        return getReceivedPx();
     }
 
+    /**
+     * @return the latest image received, it is not modified by the next ones.
+     */
     public PImage getReceivedPx() {
-        return receivedPx;
+        PImage img = images.getReadBuffer();
+        return img != null ? img : images.getWriteBuffer();
     }
 
     class RedisThread extends Thread {
@@ -97,94 +131,63 @@ public class VideoReceiver {
         setImage(redisGet.get(input.getBytes()));
     }
 
-    public void setImage(byte[] message) throws Exception {
-
-        receivedPx.loadPixels();
-        int[] px = receivedPx.pixels;
-
-        if (message == null || message.length != px.length * channels) {
-            if (message == null) {
-                throw new Exception("Cannot get image.");
-            } else {
-                throw new Exception("Cannot get the image: or size mismatch, " + "m: " + message.length + " px: " + px.length * channels);
-            }
+    /**
+     * Follow the size and format given by a frame header.
+     */
+    private void checkFormat(FrameHeader header) {
+        format = header.getPixelFormat().toString();
+        converter = RowConverter.forFormat(header.getPixelFormat());
+        channels = Camera.bytesPerPixel(header.getPixelFormat());
+        widthStep = header.getStride();
+        PImage current = images.getWriteBuffer();
+        if (header.getWidth() != current.width || header.getHeight() != current.height) {
+            images = createImages(header.getWidth(), header.getHeight());
         }
-        byte[] incomingImg = message;
-
-        int w = widthStep;
-        byte[] lineArray = new byte[w];
-        int k = 0;
+    }
 
-        int skip = 0;
-        int sk = 0;
-        if (this.widthStep != receivedPx.width) {
-            skip = widthStep - (receivedPx.width * 3);
+    public void setImage(byte[] message) throws Exception {
+        if (message == null) {
+            throw new Exception("Cannot get image.");
         }
-//        System.out.println("Widthstep "  + widthStep + " w " + receivedPx.width + " Skip: " + skip);
-
-        if (format != null && format.equals("BGR")) {
-            for (int i = 0; i < message.length / 3; i++) {
-
-                if (k >= message.length - 3) {
-                    break;
-                }
 
-                byte b = incomingImg[k++];
-                byte g = incomingImg[k++];
-                byte r = incomingImg[k++];
-                px[i] = (r & 255) << 16 | (g & 255) << 8 | (b & 255);
-
-                sk += 3;
-                if (sk == receivedPx.width * 3) {
-                    k += skip;
-                    sk = 0;
+        int offset = 0;
+        int headerStatus = header.parse(message);
+        if (headerStatus == FrameHeader.INVALID) {
+            return;
+        }
+        if (headerStatus == FrameHeader.VALID) {
+            checkFormat(header);
+            offset = FrameHeader.HEADER_SIZE;
+            if (header.getCodec() != FrameHeader.CODEC_RAW) {
+                decoded = FrameCodec.Registry.decode(header, message, decoded);
+                if (decoded == null) {
+                    return;
                 }
+                message = decoded;
+                offset = 0;
+                widthStep = header.getWidth() * channels;
             }
+        }
 
-        } else {
-
-            if (format.equals("RGB")) {
-                for (int i = 0; i < message.length / 3; i++) {
-                    if (k >= message.length - 3) {
-                        break;
-                    }
-                    byte r = incomingImg[k++];
-                    byte g = incomingImg[k++];
-                    byte b = incomingImg[k++];
-                    px[i] = (r & 255) << 16 | (g & 255) << 8 | (b & 255);
-
-                    sk += 3;
-                    if (sk == receivedPx.width * 3) {
-                        k += skip;
-                        sk = 0;
-                    }
-                }
-            } else {
-
-                // TODO: really handle ARGB and RGBA ?
-                if (format.equals("ARGB") || format.equals("RGBA")) {
-                    for (int i = 0; i < message.length / 4; i++) {
-                        if (k >= message.length - 4) {
-                            break;
-                        }
-                        byte a = incomingImg[k++];
-                        byte r = incomingImg[k++];
-                        byte g = incomingImg[k++];
-                        byte b = incomingImg[k++];
-
-                        px[i] = (a & 255) << 24 | (r & 255) << 16 | (g & 255) << 8 | (b & 255);
-
-                        sk += 4;
-                        if (sk == receivedPx.width * 4) {
-                            k += skip;
-                            sk = 0;
-                        }
-                    }
-                }
-            }
+        if (converter == null) {
+            System.err.println("VideoReceiver: cannot convert the format " + format);
+            return;
         }
+        PImage receivedPx = images.getWriteBuffer();
+        receivedPx.loadPixels();
+
+        // widthStep is either the width (packed rows) or the row size in bytes.
+        int rowSize = receivedPx.width * converter.getBytesPerPixel();
+        int stride = Math.max(widthStep, rowSize);
+        int available = message.length - offset;
+        // Incomplete frames: the rows received are converted.
+        int rows = available < rowSize ? 0
+                : Math.min(receivedPx.height, (available - rowSize) / stride + 1);
+        converter.convert(message, offset, stride, receivedPx.pixels,
+                receivedPx.width, rows, parallel);
 
         receivedPx.updatePixels();
+        images.publish();
     }
 
     class MyListener extends BinaryJedisPubSub {
@@ -192,7 +195,13 @@ public class VideoReceiver {
         @Override
         public void onMessage(byte[] channel, byte[] message) {
             try {
-                updateImage();
+                // Publish data mode: the image is in the message.
+                if (FrameHeader.hasHeader(message)
+                        || message != null && message.length == images.getWriteBuffer().pixels.length * channels) {
+                    setImage(message);
+                } else {
+                    updateImage();
+                }
             } catch (Exception e) {
                 System.err.println("Exception: " + e);
             }
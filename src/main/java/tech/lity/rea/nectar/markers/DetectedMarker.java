@@ -32,6 +32,10 @@ public class DetectedMarker implements Cloneable {
     public int id;
     public double[] corners;
     public double confidence;
+    // Capture time of the image and arrival time of the batch, FrameClock
+    // nanoseconds. 0 when unknown.
+    public long captureTimeNanos = 0;
+    public long arrivalTimeNanos = 0;
 
     public DetectedMarker(int id, double[] corners, double confidence) {
         this.id = id;
@@ -81,7 +85,21 @@ public class DetectedMarker implements Cloneable {
 
     @Override
     public DetectedMarker clone() {
-        return new DetectedMarker(id, corners.clone(), confidence);
+        DetectedMarker copy = new DetectedMarker(id, corners.clone(), confidence);
+        copy.captureTimeNanos = captureTimeNanos;
+        copy.arrivalTimeNanos = arrivalTimeNanos;
+        return copy;
+    }
+
+    /**
+     * @param markers a batch of markers.
+     * @return the capture time of the batch, 0 when unknown or empty.
+     */
+    public static long captureTimeOf(DetectedMarker[] markers) {
+        if (markers == null || markers.length == 0 || markers[0] == null) {
+            return 0;
+        }
+        return markers[0].captureTimeNanos;
     }
 
     @Override
@@ -20,9 +20,15 @@
 package tech.lity.rea.nectar.tracking;
 
 import tech.lity.rea.nectar.camera.Camera;
+import tech.lity.rea.nectar.camera.FrameClock;
+import tech.lity.rea.nectar.camera.FrameCache;
+import tech.lity.rea.nectar.camera.ImagePool;
+import tech.lity.rea.nectar.camera.LatencyHistogram;
+import tech.lity.rea.nectar.camera.Metrics;
 import org.bytedeco.javacpp.ARToolKitPlus;
 import org.bytedeco.javacpp.opencv_core.IplImage;
 import java.util.ArrayList;
+import java.util.Map;
 import processing.core.PApplet;
 import processing.core.PMatrix3D;
 import processing.core.PVector;
@@ -32,7 +38,7 @@ import tech.lity.rea.nectar.camera.TrackedObject;
  *
  * @author jeremylaviole
  */
-public abstract class MarkerBoard implements TrackedObject {
+public abstract class MarkerBoard implements TrackedObject, Metrics.Source {
 
     protected String fileName;
     protected float width;
@@ -47,6 +53,8 @@ public abstract class MarkerBoard implements TrackedObject {
     protected ArrayList<Float> lastDistance;
     protected ArrayList<Integer> nextTimeEvent;
     protected ArrayList<Integer> updateStatus;
+    // Capture time (FrameClock) of the image of the current pose.
+    protected ArrayList<Long> poseCaptureTimes;
     protected PApplet applet;
 
     protected MarkerType type = null;
@@ -85,6 +93,7 @@ public abstract class MarkerBoard implements TrackedObject {
         lastDistance = new ArrayList<Float>();
         nextTimeEvent = new ArrayList<Integer>();
         updateStatus = new ArrayList<Integer>();
+        poseCaptureTimes = new ArrayList<Long>();
     }
 
     public MarkerBoard(String fileName, float width, float height) {
@@ -106,6 +115,7 @@ public abstract class MarkerBoard implements TrackedObject {
         this.minDistanceDrawingMode.add(2f);
         this.nextTimeEvent.add(0);
         this.updateStatus.add(NORMAL);
+        this.poseCaptureTimes.add(0L);
         OneEuroFilter[] filter = null;
         this.filters.add(filter);
         addTrackerImpl(camera);
@@ -226,7 +236,38 @@ public abstract class MarkerBoard implements TrackedObject {
         return new PVector(transfo.m03, transfo.m13, transfo.m23);
     }
 
-    public synchronized void updateLocation(Camera camera, IplImage img, Object globalTracking) {
+    /**
+     * Update the location with the current frame of the camera. Boards using
+     * gray images get the gray image shared by all the trackers of the
+     * camera (Camera.getRetainedGrayImage()).
+     *
+     * @param camera
+     * @param globalTracking
+     */
+    public void updateLocation(Camera camera, Object globalTracking) {
+        IplImage gray = useGrayImages() ? camera.getRetainedGrayImage(FrameCache.GRAY) : null;
+        try {
+            IplImage img = gray != null ? gray : camera.getIplImage();
+            if (img != null) {
+                updateLocation(camera, img, globalTracking);
+            }
+        } finally {
+            ImagePool.getDefault().release(gray);
+        }
+    }
+
+    public void updateLocation(Camera camera, IplImage img, Object globalTracking) {
+        updateLocation(camera, img, globalTracking, camera.getCaptureTimeNanos());
+    }
+
+    /**
+     * @param camera
+     * @param img
+     * @param globalTracking
+     * @param captureTimeNanos capture time of img, see FrameClock.
+     */
+    public synchronized void updateLocation(Camera camera, IplImage img, Object globalTracking,
+            long captureTimeNanos) {
         int id = getId(camera);
         if (id == -1) {
             throw new RuntimeException("The board " + this.fileName + " is"
@@ -246,7 +287,94 @@ public abstract class MarkerBoard implements TrackedObject {
         if (mode == BLOCK_UPDATE && currentTime < endTime) {
             return;
         }
+        long start = System.nanoTime();
+        updateCaptureTime = captureTimeNanos;
         updatePositionImpl(id, currentTime, endTime, mode, camera, img, globalTracking);
+        trackingTimeNanos = System.nanoTime() - start;
+        trackingTime.record(trackingTimeNanos);
+    }
+
+    private volatile long trackingTimeNanos = 0;
+    // Capture time of the image or markers of the running update.
+    private long updateCaptureTime = 0;
+    private final LatencyHistogram poseLatency = new LatencyHistogram("pose");
+    private final LatencyHistogram trackingTime = new LatencyHistogram("tracking");
+    private final Metrics.Counter poses = new Metrics.Counter();
+
+    /**
+     * The pose is computed from markers detected elsewhere: their capture
+     * time replaces the one of the image.
+     *
+     * @param captureTimeNanos 0 if unknown.
+     */
+    protected void markersCaptured(long captureTimeNanos) {
+        if (captureTimeNanos > 0) {
+            updateCaptureTime = captureTimeNanos;
+        }
+    }
+
+    /**
+     * Called by the implementations when a new pose is set.
+     *
+     * @param id
+     */
+    protected void poseUpdated(int id) {
+        poses.increment();
+        poseCaptureTimes.set(id, updateCaptureTime);
+        if (updateCaptureTime > 0) {
+            poseLatency.record(FrameClock.nanoTime() - updateCaptureTime);
+        }
+    }
+
+    /**
+     * @param camera
+     * @return capture time of the image of the current pose, in FrameClock
+     * nanoseconds. 0 if there is no pose yet.
+     */
+    public long getPoseCaptureTimeNanos(Camera camera) {
+        return poseCaptureTimes.get(getId(camera));
+    }
+
+    /**
+     * @return time from the capture of the images to the new poses, for all
+     * the cameras.
+     */
+    public LatencyHistogram getPoseLatency() {
+        return poseLatency;
+    }
+
+    /**
+     * @return durations of the location updates.
+     */
+    public LatencyHistogram getTrackingTime() {
+        return trackingTime;
+    }
+
+    /**
+     * Poses found, duration of the updates, and latency from the capture to
+     * the poses.
+     *
+     * @param prefix
+     * @param out
+     */
+    @Override
+    public void reportMetrics(String prefix, Map<String, Number> out) {
+        out.put(prefix + ".poses", poses.get());
+        Metrics.putHistogram(out, prefix + ".tracking", trackingTime);
+        Metrics.putHistogram(out, prefix + ".latency.pose", poseLatency);
+    }
+
+    @Override
+    public void resetMetrics() {
+        trackingTime.reset();
+        poseLatency.reset();
+    }
+
+    /**
+     * @return duration of the last location update, in nanoseconds.
+     */
+    public long getTrackingTimeNanos() {
+        return trackingTimeNanos;
     }
 
     protected abstract void updatePositionImpl(int id, int currentTime, int endTime, int mode, Camera camera, IplImage img, Object globalTracking);
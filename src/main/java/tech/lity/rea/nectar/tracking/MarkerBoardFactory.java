@@ -23,6 +23,7 @@ import tech.lity.rea.nectar.tracking.MarkerBoard.MarkerType;
 import java.util.ArrayList;
 import java.util.HashMap;
 import processing.data.JSONArray;
+import redis.clients.jedis.Jedis;
 import tech.lity.rea.nectar.camera.RedisClientImpl;
 import tech.lity.rea.nectar.markers.MarkerList;
 
@@ -83,7 +84,10 @@ public class MarkerBoardFactory {
                  */
                 if (USE_JSON) {
                     String key = "markerboards:json:" + fileName;
-                    JSONArray markersJson = JSONArray.parse(RedisClientImpl.getMainConnection().createConnection().get(key));  // TODO: check that the get succeeded
+                    JSONArray markersJson;
+                    try (Jedis connection = RedisClientImpl.createMainConnection()) {
+                        markersJson = JSONArray.parse(connection.get(key));  // TODO: check that the get succeeded
+                    }
                     if (markersJson == null) {
                         System.out.println("Cannot read marker configuration: " + fileName);
                     }
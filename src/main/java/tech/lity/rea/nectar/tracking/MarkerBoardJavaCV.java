@@ -190,6 +190,7 @@ public class MarkerBoardJavaCV extends MarkerBoard {
     }
 
     private void update(PMatrix3D newPos, int id) {
+        poseUpdated(id);
 
         PMatrix3D transfo = (PMatrix3D) transfos.get(id);
         tech.lity.rea.nectar.tracking.OneEuroFilter[] filter = filters.get(id);
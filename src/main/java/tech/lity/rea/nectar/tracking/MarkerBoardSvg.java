@@ -110,6 +110,7 @@ public class MarkerBoardSvg extends MarkerBoard {
             }
         }
 
+        markersCaptured(DetectedMarker.captureTimeOf(markers));
         PMatrix3D newPos = DetectedMarker.compute3DPos(markers, markersFromSVG, camera);
 
         if (newPos == INVALID_LOCATION) {
@@ -155,6 +156,7 @@ public class MarkerBoardSvg extends MarkerBoard {
     }
 
     private void update(PMatrix3D newPos, int id) {
+        poseUpdated(id);
         PMatrix3D transfo = (PMatrix3D) transfos.get(id);
         OneEuroFilter filter[] = filters.get(id);
 
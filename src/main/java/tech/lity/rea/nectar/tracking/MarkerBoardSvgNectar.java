@@ -29,6 +29,7 @@ import processing.core.PMatrix3D;
 import processing.core.PVector;
 import processing.data.JSONArray;
 import processing.data.XML;
+import redis.clients.jedis.Jedis;
 import tech.lity.rea.nectar.camera.RedisClient;
 import tech.lity.rea.nectar.camera.RedisClientImpl;
 import tech.lity.rea.nectar.markers.MarkerSVGReader;
@@ -52,8 +53,8 @@ public class MarkerBoardSvgNectar extends MarkerBoard {
     }
 
     public void load(RedisClient client) {
-        try {
-            String xmlText = client.createConnection().get("markerboards:xml:" + fileName);
+        try (Jedis connection = client.createConnection()) {
+            String xmlText = connection.get("markerboards:xml:" + fileName);
             if (xmlText == null) {
                 throw new Exception("Impossible to read: " + "markerboards:xml:" + fileName);
             }
@@ -98,6 +99,7 @@ public class MarkerBoardSvgNectar extends MarkerBoard {
             }
         }
 
+        markersCaptured(DetectedMarker.captureTimeOf(markers));
         PMatrix3D newPos = DetectedMarker.compute3DPos(markers, markersFromSVG, camera);
 
         if (newPos == INVALID_LOCATION) {
@@ -118,6 +120,7 @@ public class MarkerBoardSvgNectar extends MarkerBoard {
     }
 
     private void update(PMatrix3D newPos, int id) {
+        poseUpdated(id);
         PMatrix3D transfo = (PMatrix3D) transfos.get(id);
 
         transfo.set(newPos);
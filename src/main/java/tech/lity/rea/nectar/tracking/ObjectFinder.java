@@ -34,6 +34,9 @@ import static org.bytedeco.javacpp.opencv_imgproc.*;
 import org.bytedeco.javacv.BaseChildSettings;
 import org.bytedeco.javacv.CanvasFrame;
 import org.bytedeco.javacv.OpenCVFrameConverter;
+import tech.lity.rea.nectar.camera.ImagePool;
+import tech.lity.rea.nectar.camera.LatencyHistogram;
+import tech.lity.rea.nectar.camera.Metrics;
 
 /**
  *
@@ -187,18 +190,39 @@ public class ObjectFinder {
     IndexParams indexParams = null;
     SearchParams searchParams = null;
     Mat pt1 = null, pt2 = null, mask = null, H = null;
+    final Mat noMask = new Mat();
     ArrayList<Integer> ptpairs = null;
 
     CvRect roi = null;
     CvRect defaultRoi = null;
 
+    // Durations of find(), number of images where the object is found or not.
+    private static final LatencyHistogram findTime = Metrics.getDefault().histogram("tracking.objectfinder.find");
+    private static final Metrics.Counter foundCount = Metrics.getDefault().counter("tracking.objectfinder.found");
+    private static final Metrics.Counter lostCount = Metrics.getDefault().counter("tracking.objectfinder.lost");
+
     public double[] find(IplImage image) {
+        long start = System.nanoTime();
+        double[] corners = findCorners(image);
+        findTime.record(System.nanoTime() - start);
+        if (corners != null) {
+            foundCount.increment();
+        } else {
+            lostCount.increment();
+        }
+        return corners;
+    }
+
+    private double[] findCorners(IplImage image) {
         if (objectDescriptors.rows() < settings.getMatchesMin()) {
             System.out.println("Object descriptor problem " + objectDescriptors.rows());
             return null;
         }
-        imageKeypoints = new KeyPointVector();
-        imageDescriptors = new Mat();
+        // Reused from one frame to the next: detectAndCompute resizes them.
+        if (imageKeypoints == null) {
+            imageKeypoints = new KeyPointVector();
+            imageDescriptors = new Mat();
+        }
 
         // mask is a single channel image. 
         if (roi == null) {
@@ -208,10 +232,9 @@ public class ObjectFinder {
 
         cvSetImageROI(image, roi);
 
-        System.out.println("retreived roi: " + roi.x() + " " + roi.y() + " " + roi.width() + " " + roi.height());
         long startTime = System.currentTimeMillis();
         settings.detector.detectAndCompute(cvarrToMat(image),
-                new Mat(), imageKeypoints, imageDescriptors, false);
+                noMask, imageKeypoints, imageDescriptors, false);
         //                cvarrToMat(maskImg), imageKeypoints, imageDescriptors, false);
 
         if (imageDescriptors.rows() < settings.getMatchesMin()) {
@@ -228,8 +251,7 @@ public class ObjectFinder {
         long totalTime = endTime - startTime;
 //        System.out.println("Detection time: " + totalTime + " ms.");
         int total = (int) imageKeypoints.size();
-        logger.info(total + " image descriptors");
-        System.out.println(total + " image descriptors");
+        logger.fine(total + " image descriptors");
 
         int w = settings.objectImage.width();
         int h = settings.objectImage.height();
@@ -250,7 +272,6 @@ public class ObjectFinder {
         // update mask from dstCorners... 
 
         cvSetImageROI(image, defaultRoi);
-        System.out.println("Updated roi: " + roi.x() + " " + roi.y());
         return dstCorners;
     }
 
@@ -444,10 +465,11 @@ public class ObjectFinder {
             System.exit(-1);
         }
 
-        IplImage objectColor = IplImage.create(object.width(), object.height(), 8, 3);
+        ImagePool pool = ImagePool.getDefault();
+        IplImage objectColor = pool.acquire(object.width(), object.height(), 8, 3);
         cvCvtColor(object, objectColor, CV_GRAY2BGR);
 
-        IplImage correspond = IplImage.create(image.width(), object.height() + image.height(), 8, 1);
+        IplImage correspond = pool.acquire(image.width(), object.height() + image.height(), 8, 1);
         cvSetImageROI(correspond, cvRect(0, 0, object.width(), object.height()));
         cvCopy(object, correspond);
         cvSetImageROI(correspond, cvRect(0, object.height(), correspond.width(), correspond.height()));
@@ -502,5 +524,7 @@ public class ObjectFinder {
 
         objectFrame.dispose();
         correspondFrame.dispose();
+        pool.release(objectColor);
+        pool.release(correspond);
     }
 }